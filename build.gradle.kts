@@ -2,6 +2,7 @@ plugins {
     id("java")
     id("org.jetbrains.intellij") version "1.13.3"
     id("com.github.johnrengelman.shadow") version "8.1.1"
+    id("me.champeau.jmh") version "0.7.1"
 }
 
 group = "com.guardsquare"
@@ -20,7 +21,30 @@ intellij {
     plugins.set(listOf(/* Plugin Dependencies */))
 }
 
+// Benchmarks of the generation pipeline, in src/jmh. Run with ./gradlew jmh.
+jmh {
+    // Report allocation rates along with throughput.
+    profilers.add("gc")
+    fork.set(1)
+    warmupIterations.set(3)
+    iterations.set(5)
+}
+
 tasks {
+    // Replays a keystroke trace against the update loop: ./gradlew replayKeystrokes [-Ptrace=file].
+    register<JavaExec>("replayKeystrokes") {
+        classpath = sourceSets["jmh"].runtimeClasspath
+        mainClass.set("com.guardsquare.bytecodebuilder.backend.KeystrokeReplay")
+        if (project.hasProperty("trace")) {
+            args(project.property("trace"))
+        }
+    }
+
+    // Unit tests, in src/test. Run with ./gradlew test.
+    test {
+        useJUnitPlatform()
+    }
+
     // Set the JVM compatibility versions
     withType<JavaCompile> {
         sourceCompatibility = "17"
@@ -38,6 +62,13 @@ tasks {
         password.set(System.getenv("PRIVATE_KEY_PASSWORD"))
     }
 
+    shadowJar {
+        // The jar also runs the headless batch converter.
+        manifest {
+            attributes["Main-Class"] = "com.guardsquare.bytecodebuilder.backend.BatchConverter"
+        }
+    }
+
     publishPlugin {
         token.set(System.getenv("PUBLISH_TOKEN"))
     }
@@ -45,4 +76,8 @@ tasks {
 
 dependencies {
     implementation("com.guardsquare:proguard-core:9.0.8")
+    // The alternative compiler backend.
+    implementation("org.eclipse.jdt:ecj:3.33.0")
+
+    testImplementation("org.junit.jupiter:junit-jupiter:5.9.2")
 }
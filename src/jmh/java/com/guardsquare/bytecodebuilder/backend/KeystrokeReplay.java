@@ -0,0 +1,278 @@
+package com.guardsquare.bytecodebuilder.backend;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.guardsquare.bytecodebuilder.BytecodeBuilderToolWindow.CLASS_NAME;
+import static com.guardsquare.bytecodebuilder.BytecodeBuilderToolWindow.METHOD_NAME;
+
+/**
+ * Replays a trace of timestamped document edits, in real time, against the
+ * update loop of the tool window: the same {@link UpdateScheduler}, with its
+ * adaptive delay, the same syntax gate and pipeline in {@link Preview}, and
+ * the same fair queue of workers. It reports the latency from each edit to
+ * the first published output that includes it.
+ *
+ * Usage:
+ *     KeystrokeReplay [trace_file]
+ *
+ * Each line of a trace file holds an edit as tab-separated fields: the time
+ * in milliseconds since the start of the trace, the document offset, the
+ * number of removed characters, and the inserted text, in which "\n", "\t"
+ * and "\\" are escaped. The document starts out as the tool window's
+ * prompt. Without a trace file, the harness replays a built-in trace of
+ * someone typing a few statements, with pauses between them.
+ */
+public class KeystrokeReplay
+{
+    private static final String PROMPT =
+        "class " + CLASS_NAME + " \n{\n" +
+        "    public static void " + METHOD_NAME + "(String... args) \n" +
+        "    {\n" +
+        "        // Put your code here.\n" +
+        "        \n" +
+        "    }\n" +
+        "}\n";
+
+    private static final String[] TYPED_STATEMENTS =
+    {
+        "int sum = 0;",
+        "for (int index = 0; index < args.length; index++) { sum += args[index].length(); }",
+        "try { sum += Integer.parseInt(args[0]); } catch (NumberFormatException e) { sum = -1; }",
+        "System.out.println(\"Sum: \" + sum);",
+    };
+
+    private static final long KEYSTROKE_INTERVAL_MILLIS = 120L;
+    private static final long PAUSE_MILLIS              = 1500L;
+
+
+    public static void main(String[] args) throws Exception
+    {
+        List<Edit> edits = args.length > 0 ?
+            readTrace(Path.of(args[0])) :
+            typingTrace();
+
+        new KeystrokeReplay().replay(edits);
+    }
+
+
+    /**
+     * Replays the given edits and prints the statistics.
+     */
+    public void replay(List<Edit> edits) throws InterruptedException
+    {
+        StringBuilder document = new StringBuilder(PROMPT);
+
+        // The edit generation and time of each edit, and the time its output was published.
+        long[] editGenerations = new long[edits.size()];
+        long[] editTimes       = new long[edits.size()];
+        long[] publishTimes    = new long[edits.size()];
+
+        CompilationService       compilationService = new CompilationService();
+        ResultCache              resultCache        = new ResultCache();
+        ScheduledExecutorService timerService       = Executors.newSingleThreadScheduledExecutor();
+        ExecutorService          workerService      = Executors.newCachedThreadPool();
+        FairExecutor             fairExecutor       = new FairExecutor(workerService, Runtime.getRuntime().availableProcessors());
+
+        UpdateScheduler<Preview> updateScheduler = new UpdateScheduler<>(
+            timerService,
+            fairExecutor.executorFor(this),
+            cancelled -> {
+                String javaCode;
+                synchronized (document)
+                {
+                    javaCode = document.toString();
+                }
+                return Preview.generate(compilationService, resultCache, javaCode, "", false, cancelled, Long.MAX_VALUE);
+            },
+            (output, generation) -> {
+                long now = System.nanoTime();
+                synchronized (publishTimes)
+                {
+                    for (int index = 0; index < edits.size(); index++)
+                    {
+                        if (publishTimes[index] == 0L &&
+                            editGenerations[index] != 0L &&
+                            editGenerations[index] <= generation)
+                        {
+                            publishTimes[index] = now;
+                        }
+                    }
+                }
+            },
+            Preview::isCompiled);
+
+        long startTime = System.nanoTime();
+        for (int index = 0; index < edits.size(); index++)
+        {
+            Edit edit = edits.get(index);
+
+            long delayNanos = startTime + TimeUnit.MILLISECONDS.toNanos(edit.timeMillis) - System.nanoTime();
+            if (delayNanos > 0L)
+            {
+                TimeUnit.NANOSECONDS.sleep(delayNanos);
+            }
+
+            synchronized (document)
+            {
+                document.replace(edit.offset, edit.offset + edit.removedLength, edit.insertedText);
+            }
+
+            synchronized (publishTimes)
+            {
+                editTimes[index]       = System.nanoTime();
+                editGenerations[index] = updateScheduler.scheduleUpdate();
+            }
+        }
+
+        // Delayed updates still run after shutdown, so this waits for the
+        // last one to be handed to the workers, and then until every update
+        // has been superseded or published.
+        timerService.shutdown();
+        timerService.awaitTermination(1L, TimeUnit.MINUTES);
+
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1L);
+        while (updateScheduler.getCoalescedCount() +
+               updateScheduler.getAbandonedCount() +
+               updateScheduler.getPublishedCount() < updateScheduler.getRequestedCount() &&
+               System.nanoTime() < deadline)
+        {
+            TimeUnit.MILLISECONDS.sleep(10L);
+        }
+        workerService.shutdown();
+        workerService.awaitTermination(1L, TimeUnit.MINUTES);
+        compilationService.close();
+
+        long[] latencies = new long[edits.size()];
+        int    count     = 0;
+        for (int index = 0; index < edits.size(); index++)
+        {
+            if (publishTimes[index] != 0L)
+            {
+                latencies[count++] = publishTimes[index] - editTimes[index];
+            }
+        }
+        Arrays.sort(latencies, 0, count);
+
+        System.out.println("Edits:               " + edits.size());
+        System.out.println("Latency p50:         " + percentileMillis(latencies, count, 50) + " ms");
+        System.out.println("Latency p95:         " + percentileMillis(latencies, count, 95) + " ms");
+        System.out.println("Latency p99:         " + percentileMillis(latencies, count, 99) + " ms");
+        System.out.println("Superseded runs:     " + (updateScheduler.getCoalescedCount() + updateScheduler.getAbandonedCount()));
+        System.out.println("Wasted compilations: " + updateScheduler.getAbandonedCount());
+        System.out.println("Published runs:      " + updateScheduler.getPublishedCount());
+        System.out.println("Final typing delay:  " + updateScheduler.getTypingDelayMillis() + " ms");
+    }
+
+
+    /**
+     * Reads a trace file.
+     */
+    public static List<Edit> readTrace(Path traceFile) throws IOException
+    {
+        List<Edit> edits = new ArrayList<>();
+        for (String line : Files.readAllLines(traceFile, StandardCharsets.UTF_8))
+        {
+            if (line.isEmpty())
+            {
+                continue;
+            }
+
+            String[] fields = line.split("\t", 4);
+            edits.add(new Edit(Long.parseLong(fields[0]),
+                               Integer.parseInt(fields[1]),
+                               Integer.parseInt(fields[2]),
+                               fields.length > 3 ? unescape(fields[3]) : ""));
+        }
+        return edits;
+    }
+
+
+    /**
+     * Returns a trace of someone typing statements in the prompt, one
+     * character at a time, pausing after each statement.
+     */
+    public static List<Edit> typingTrace()
+    {
+        List<Edit> edits  = new ArrayList<>();
+        long       time   = 0L;
+        int        offset = PROMPT.indexOf("// Put your code here.") + "// Put your code here.".length() + 9;
+
+        for (String statement : TYPED_STATEMENTS)
+        {
+            String text = statement + "\n        ";
+            for (int index = 0; index < text.length(); index++)
+            {
+                time += KEYSTROKE_INTERVAL_MILLIS;
+                edits.add(new Edit(time, offset++, 0, text.substring(index, index + 1)));
+            }
+            time += PAUSE_MILLIS;
+        }
+        return edits;
+    }
+
+
+    // Small utility methods.
+
+    private static String unescape(String text)
+    {
+        StringBuilder builder = new StringBuilder(text.length());
+        for (int index = 0; index < text.length(); index++)
+        {
+            char c = text.charAt(index);
+            if (c == '\\' && index + 1 < text.length())
+            {
+                char next = text.charAt(++index);
+                builder.append(next == 'n' ? '\n' : next == 't' ? '\t' : next);
+            }
+            else
+            {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+
+    private static long percentileMillis(long[] sortedNanos, int count, int percentile)
+    {
+        if (count == 0)
+        {
+            return -1L;
+        }
+
+        // Nearest rank.
+        int rank = (int)Math.ceil(percentile / 100.0 * count);
+        return TimeUnit.NANOSECONDS.toMillis(sortedNanos[Math.max(rank, 1) - 1]);
+    }
+
+
+    /**
+     * A timestamped document edit.
+     */
+    public static class Edit
+    {
+        public final long   timeMillis;
+        public final int    offset;
+        public final int    removedLength;
+        public final String insertedText;
+
+
+        public Edit(long timeMillis, int offset, int removedLength, String insertedText)
+        {
+            this.timeMillis    = timeMillis;
+            this.offset        = offset;
+            this.removedLength = removedLength;
+            this.insertedText  = insertedText;
+        }
+    }
+}
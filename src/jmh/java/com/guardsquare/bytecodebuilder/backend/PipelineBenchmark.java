@@ -0,0 +1,191 @@
+package com.guardsquare.bytecodebuilder.backend;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import proguard.classfile.Clazz;
+import proguard.classfile.ProgramClass;
+import proguard.classfile.io.ProgramClassReader;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks each stage of {@link CodeUtil#getProGuardInstructions}, and the
+ * pipeline as a whole, over the {@link Snippets} corpus.
+ *
+ * Every stage starts from the output of the previous one, prepared once per
+ * trial, so the stages can be compared directly. Run with the gc profiler to
+ * get allocation rates as well. Each compiler backend is measured separately.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PipelineBenchmark
+{
+    @Param({ Snippets.STRAIGHT_LINE,
+             Snippets.BRANCHING,
+             Snippets.TRY_CATCH,
+             Snippets.STRING_CONSTANTS,
+             Snippets.INVOKE_DYNAMIC })
+    public String snippet;
+
+    @Param({ CompilerBackend.JAVAC,
+             CompilerBackend.ECLIPSE })
+    public String compiler;
+
+    private final StringWriter  stringWriter = new StringWriter();
+    private final PrintWriter   printWriter  = new PrintWriter(stringWriter);
+    private final StringBuilder printBuilder = new StringBuilder();
+
+    private CompilerBackend           compilerBackend;
+    private String                    javaCode;
+    private List<ByteBuffer>          classBytes;
+    private List<Clazz>               classes;
+    private List<CodeUtil.MethodCode> methodCodes;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        compilerBackend = CompilerBackend.create(compiler);
+        javaCode        = Snippets.get(snippet);
+
+        classBytes = compile();
+        if (classBytes.isEmpty())
+        {
+            throw new IllegalStateException("Snippet [" + snippet + "] doesn't compile with [" + compiler + "]:\n" + stringWriter);
+        }
+
+        classes     = readClasses();
+        methodCodes = CodeUtil.collectMethodCodes(classes);
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        compilerBackend.close();
+    }
+
+
+    /**
+     * Compiles the snippet with the warm compiler backend.
+     */
+    @Benchmark
+    public List<ByteBuffer> compile() throws IOException
+    {
+        stringWriter.getBuffer().setLength(0);
+        return compilerBackend.compile(javaCode, printWriter, "", () -> false);
+    }
+
+
+    /**
+     * Parses the parts of the compiled class files that get printed.
+     */
+    @Benchmark
+    public List<Clazz> readClasses()
+    {
+        List<Clazz> classes = new ArrayList<>(classBytes.size());
+        for (ByteBuffer bytes : classBytes)
+        {
+            classes.add(SelectiveClassReader.read(bytes));
+        }
+        return classes;
+    }
+
+
+    /**
+     * Parses the compiled class files completely, for comparison.
+     */
+    @Benchmark
+    public List<Clazz> readClassesFully() throws IOException
+    {
+        List<Clazz> classes = new ArrayList<>(classBytes.size());
+        for (ByteBuffer bytes : classBytes)
+        {
+            byte[] array = new byte[bytes.remaining()];
+            bytes.duplicate().get(array);
+
+            ProgramClass programClass = new ProgramClass();
+            programClass.accept(new ProgramClassReader(new DataInputStream(new ByteArrayInputStream(array))));
+            classes.add(programClass);
+        }
+        return classes;
+    }
+
+
+    /**
+     * Decodes the instructions and finds the branch targets.
+     */
+    @Benchmark
+    public void buildInstructionTables(Blackhole blackhole)
+    {
+        for (CodeUtil.MethodCode methodCode : methodCodes)
+        {
+            InstructionTable instructionTable = new InstructionTable();
+            instructionTable.build(methodCode.clazz, methodCode.method, methodCode.codeAttribute);
+            blackhole.consume(instructionTable);
+        }
+    }
+
+
+    /**
+     * Decodes the instructions and collects the labels of branch targets and
+     * exception table entries.
+     */
+    @Benchmark
+    public void collectLabels(Blackhole blackhole)
+    {
+        for (CodeUtil.MethodCode methodCode : methodCodes)
+        {
+            InstructionTable instructionTable = new InstructionTable();
+            instructionTable.build(methodCode.clazz, methodCode.method, methodCode.codeAttribute);
+
+            StringBuilder         builder               = new StringBuilder();
+            LabelPrinter          labelPrinter          = new LabelPrinter(builder, instructionTable);
+            ExceptionLabelManager exceptionLabelManager = new ExceptionLabelManager(labelPrinter);
+            methodCode.codeAttribute.exceptionsAccept(methodCode.clazz, methodCode.method, (clazz, method, codeAttribute, exceptionInfo) ->
+                exceptionLabelManager.addCatch(exceptionInfo.u2startPC,
+                                               exceptionInfo.u2endPC,
+                                               exceptionInfo.u2handlerPC,
+                                               null));
+            labelPrinter.printLabelCreationStatements();
+            blackhole.consume(builder);
+        }
+    }
+
+
+    /**
+     * Prints all methods, one after the other, with fresh constant caches,
+     * into a reused builder.
+     */
+    @Benchmark
+    public int printMethods()
+    {
+        PipelineStats stats = new PipelineStats();
+        for (CodeUtil.MethodCode methodCode : CodeUtil.collectMethodCodes(classes))
+        {
+            printBuilder.setLength(0);
+            CodeUtil.printMethodCode(methodCode, false, () -> false, stats, printBuilder);
+        }
+        return printBuilder.length();
+    }
+
+
+    /**
+     * Runs the whole pipeline, without cached results.
+     */
+    @Benchmark
+    public String fullPipeline()
+    {
+        return CodeUtil.getProGuardInstructions(compilerBackend,
+                                                new ResultCache(),
+                                                javaCode,
+                                                "",
+                                                false,
+                                                () -> false);
+    }
+}
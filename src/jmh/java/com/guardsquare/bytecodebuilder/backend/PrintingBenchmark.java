@@ -0,0 +1,145 @@
+package com.guardsquare.bytecodebuilder.backend;
+
+import org.openjdk.jmh.annotations.*;
+import proguard.classfile.Clazz;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the printing of single instructions over the {@link Snippets}
+ * corpus, in steady state: the instruction tables, labels and constant
+ * arguments are prepared once per trial, and the instructions are printed
+ * into a reused builder.
+ *
+ * Every invocation prints a fixed number of instructions, cycling through
+ * the methods, so the scores and the gc profiler's gc.alloc.rate.norm are
+ * per instruction.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PrintingBenchmark
+{
+    private static final int INSTRUCTIONS_PER_INVOCATION = 1024;
+
+    @Param({ Snippets.STRAIGHT_LINE,
+             Snippets.BRANCHING,
+             Snippets.TRY_CATCH,
+             Snippets.STRING_CONSTANTS,
+             Snippets.INVOKE_DYNAMIC })
+    public String snippet;
+
+    @Param({ "false", "true" })
+    public boolean hoistConstants;
+
+    private final StringBuilder builder = new StringBuilder();
+
+    private MethodPrinter[] methodPrinters;
+    private int             methodIndex;
+    private int             instructionIndex;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        List<ByteBuffer> classBytes;
+        StringWriter     stringWriter = new StringWriter();
+        try (CompilerBackend compilerBackend = CompilerBackend.create(CompilerBackend.JAVAC))
+        {
+            classBytes = compilerBackend.compile(Snippets.get(snippet), new PrintWriter(stringWriter), "", () -> false);
+        }
+        if (classBytes.isEmpty())
+        {
+            throw new IllegalStateException("Snippet [" + snippet + "] doesn't compile:\n" + stringWriter);
+        }
+
+        List<Clazz> classes = new ArrayList<>(classBytes.size());
+        for (ByteBuffer bytes : classBytes)
+        {
+            classes.add(SelectiveClassReader.read(bytes));
+        }
+
+        List<CodeUtil.MethodCode> methodCodes = CodeUtil.collectMethodCodes(classes);
+
+        methodPrinters = new MethodPrinter[methodCodes.size()];
+        int instructionCount = 0;
+        for (int index = 0; index < methodPrinters.length; index++)
+        {
+            methodPrinters[index] = new MethodPrinter(methodCodes.get(index), builder, hoistConstants);
+            instructionCount     += methodPrinters[index].instructionTable.size();
+        }
+
+        // Print every instruction once, so the constant arguments are cached,
+        // like they are for all but the first method of a class.
+        for (int printed = 0; printed < instructionCount; printed += INSTRUCTIONS_PER_INVOCATION)
+        {
+            printInstructions();
+        }
+    }
+
+
+    /**
+     * Prints the next instructions into the reused builder.
+     */
+    @Benchmark
+    @OperationsPerInvocation(INSTRUCTIONS_PER_INVOCATION)
+    public int printInstructions()
+    {
+        builder.setLength(0);
+        for (int count = 0; count < INSTRUCTIONS_PER_INVOCATION; count++)
+        {
+            MethodPrinter methodPrinter = methodPrinters[methodIndex];
+            methodPrinter.print(instructionIndex);
+
+            if (++instructionIndex == methodPrinter.instructionTable.size())
+            {
+                instructionIndex = 0;
+                methodIndex      = (methodIndex + 1) % methodPrinters.length;
+            }
+        }
+        return builder.length();
+    }
+
+
+    /**
+     * Prints the instructions of a single method, with its labels numbered
+     * up front.
+     */
+    private static class MethodPrinter
+    {
+        private final CodeUtil.MethodCode methodCode;
+        private final InstructionTable    instructionTable = new InstructionTable();
+        private final InstructionPrinter  instructionPrinter;
+
+
+        public MethodPrinter(CodeUtil.MethodCode methodCode, StringBuilder builder, boolean hoistConstants)
+        {
+            this.methodCode = methodCode;
+
+            instructionTable.build(methodCode.clazz, methodCode.method, methodCode.codeAttribute);
+
+            // Branches only refer to labels that have been numbered.
+            LabelPrinter labelPrinter = new LabelPrinter(new StringBuilder(), instructionTable);
+            labelPrinter.printLabelCreationStatements();
+
+            instructionPrinter = new InstructionPrinter(builder,
+                                                        labelPrinter,
+                                                        methodCode.constantArgumentCache,
+                                                        hoistConstants);
+        }
+
+
+        public void print(int index)
+        {
+            instructionTable.instruction(index).accept(methodCode.clazz,
+                                                       methodCode.method,
+                                                       methodCode.codeAttribute,
+                                                       instructionTable.offset(index),
+                                                       instructionPrinter);
+        }
+    }
+}
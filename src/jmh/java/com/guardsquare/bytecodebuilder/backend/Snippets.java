@@ -0,0 +1,118 @@
+package com.guardsquare.bytecodebuilder.backend;
+
+import static com.guardsquare.bytecodebuilder.BytecodeBuilderToolWindow.CLASS_NAME;
+import static com.guardsquare.bytecodebuilder.BytecodeBuilderToolWindow.METHOD_NAME;
+
+/**
+ * Corpus of representative snippets, in the shape of the tool window's
+ * prompt, for the benchmarks.
+ */
+public class Snippets
+{
+    public static final String STRAIGHT_LINE    = "straightLine";
+    public static final String BRANCHING        = "branching";
+    public static final String TRY_CATCH        = "tryCatch";
+    public static final String STRING_CONSTANTS = "stringConstants";
+    public static final String INVOKE_DYNAMIC   = "invokeDynamic";
+
+
+    /**
+     * Returns the source code of the snippet with the given name.
+     */
+    public static String get(String name)
+    {
+        switch (name)
+        {
+            case STRAIGHT_LINE:    return straightLine();
+            case BRANCHING:        return branching();
+            case TRY_CATCH:        return tryCatch();
+            case STRING_CONSTANTS: return stringConstants();
+            case INVOKE_DYNAMIC:   return invokeDynamic();
+            default: throw new IllegalArgumentException("Unknown snippet [" + name + "]");
+        }
+    }
+
+
+    // Small utility methods.
+
+    private static String straightLine()
+    {
+        StringBuilder body = new StringBuilder("        int a = args.length;\n        long b = 1L;\n");
+        for (int index = 0; index < 200; index++)
+        {
+            body.append("        a = a * ").append(index + 3).append(" + ").append(index).append(";\n")
+                .append("        b ^= (long)a << ").append(index % 64).append(";\n");
+        }
+        body.append("        System.out.println(a + b);\n");
+        return wrap(body);
+    }
+
+
+    private static String branching()
+    {
+        StringBuilder body = new StringBuilder("        int a = args.length;\n");
+        for (int index = 0; index < 100; index++)
+        {
+            body.append("        if (a > ").append(index).append(") { a -= ").append(index).append("; } else if (a == ")
+                .append(index).append(") { a++; } else { a += 2; }\n")
+                .append("        while (a > 1000) { a >>= 1; }\n");
+        }
+        body.append("        System.out.println(a);\n");
+        return wrap(body);
+    }
+
+
+    private static String tryCatch()
+    {
+        StringBuilder body = new StringBuilder("        int a = args.length;\n");
+        for (int index = 0; index < 60; index++)
+        {
+            body.append("        try { a = Integer.parseInt(args[").append(index).append("]); }\n")
+                .append("        catch (NumberFormatException e) { a = -1; }\n")
+                .append("        catch (ArrayIndexOutOfBoundsException | NullPointerException e) { a = -2; }\n")
+                .append("        finally { a++; }\n");
+        }
+        body.append("        System.out.println(a);\n");
+        return wrap(body);
+    }
+
+
+    private static String stringConstants()
+    {
+        StringBuilder body = new StringBuilder();
+        for (int index = 0; index < 100; index++)
+        {
+            body.append("        System.out.println(\"");
+            for (int count = 0; count < 20; count++)
+            {
+                body.append("Line ").append(index).append(" with \\\"quotes\\\", tabs\\t and escapes\\\\ ");
+            }
+            body.append("\\n\");\n");
+        }
+        return wrap(body);
+    }
+
+
+    private static String invokeDynamic()
+    {
+        StringBuilder body = new StringBuilder("        java.util.List<Runnable> runnables = new java.util.ArrayList<>();\n");
+        for (int index = 0; index < 100; index++)
+        {
+            body.append("        runnables.add(() -> System.out.println(args.length + ").append(index).append("));\n")
+                .append("        java.util.function.Function<String, Integer> f").append(index).append(" = String::length;\n");
+        }
+        body.append("        runnables.forEach(Runnable::run);\n");
+        return wrap(body);
+    }
+
+
+    private static String wrap(CharSequence body)
+    {
+        return "class " + CLASS_NAME + "\n{\n" +
+               "    public static void " + METHOD_NAME + "(String... args)\n" +
+               "    {\n" +
+               body +
+               "    }\n" +
+               "}\n";
+    }
+}
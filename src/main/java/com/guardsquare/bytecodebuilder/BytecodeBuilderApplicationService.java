@@ -0,0 +1,63 @@
+package com.guardsquare.bytecodebuilder;
+
+import com.guardsquare.bytecodebuilder.backend.FairExecutor;
+import com.guardsquare.bytecodebuilder.backend.ResultCache;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.util.concurrency.AppExecutorUtil;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Application-level state of the BytecodeBuilder tool windows, shared by all
+ * open projects: the workers that generate code and the cache of generated
+ * code.
+ *
+ * The workers run on the platform's pooled threads, at most one per core,
+ * and take turns between projects.
+ */
+public class BytecodeBuilderApplicationService
+implements   Disposable
+{
+    private final FairExecutor fairExecutor = new FairExecutor(AppExecutorUtil.getAppExecutorService(),
+                                                               Runtime.getRuntime().availableProcessors());
+    private final ResultCache  resultCache  = new ResultCache();
+
+
+    public static BytecodeBuilderApplicationService getInstance()
+    {
+        return ApplicationManager.getApplication().getService(BytecodeBuilderApplicationService.class);
+    }
+
+
+    /**
+     * Returns an executor for the work of the given project.
+     */
+    public Executor getExecutor(Project project)
+    {
+        return fairExecutor.executorFor(project);
+    }
+
+
+    /**
+     * Drops the queued work of the given project.
+     */
+    public void release(Project project)
+    {
+        fairExecutor.release(project);
+    }
+
+
+    public ResultCache getResultCache()
+    {
+        return resultCache;
+    }
+
+
+    @Override
+    public void dispose()
+    {
+        resultCache.clear();
+    }
+}
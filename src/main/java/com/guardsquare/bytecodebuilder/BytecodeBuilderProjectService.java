@@ -0,0 +1,64 @@
+package com.guardsquare.bytecodebuilder;
+
+import com.guardsquare.bytecodebuilder.backend.CompilerBackend;
+import com.guardsquare.bytecodebuilder.backend.PipelineMetrics;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.project.Project;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Project-level state of the BytecodeBuilder tool window that outlives
+ * individual previews, such as the warm compilers for the project's class
+ * path and the timings of recent runs. Everything is released, including
+ * the project's queued work in the {@link BytecodeBuilderApplicationService},
+ * when the project is disposed.
+ */
+public class BytecodeBuilderProjectService
+implements   Disposable
+{
+    private final Map<String, CompilerBackend> compilerBackends = new HashMap<>();
+    private final PipelineMetrics              pipelineMetrics  = new PipelineMetrics();
+    private final Project                      project;
+
+
+    public BytecodeBuilderProjectService(Project project)
+    {
+        this.project = project;
+    }
+
+
+    public static BytecodeBuilderProjectService getInstance(Project project)
+    {
+        return project.getService(BytecodeBuilderProjectService.class);
+    }
+
+
+    /**
+     * Returns the compiler backend with the given name, creating it the
+     * first time it is used.
+     */
+    public synchronized CompilerBackend getCompilerBackend(String name)
+    {
+        return compilerBackends.computeIfAbsent(name, CompilerBackend::create);
+    }
+
+
+    public PipelineMetrics getPipelineMetrics()
+    {
+        return pipelineMetrics;
+    }
+
+
+    @Override
+    public void dispose()
+    {
+        BytecodeBuilderApplicationService.getInstance().release(project);
+        synchronized (this)
+        {
+            compilerBackends.values().forEach(CompilerBackend::close);
+            compilerBackends.clear();
+        }
+    }
+}
@@ -1,8 +1,21 @@
 package com.guardsquare.bytecodebuilder;
 
 import com.guardsquare.bytecodebuilder.backend.CodeUtil;
+import com.guardsquare.bytecodebuilder.backend.CompilerBackend;
+import com.guardsquare.bytecodebuilder.backend.OutputDiff;
+import com.guardsquare.bytecodebuilder.backend.Preview;
+import com.guardsquare.bytecodebuilder.backend.UpdateScheduler;
+import com.guardsquare.bytecodebuilder.backend.WarmUp;
 import com.intellij.lang.Language;
 import com.intellij.lang.StdLanguages;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.EditorFactory;
 import com.intellij.openapi.editor.EditorSettings;
 import com.intellij.openapi.editor.event.DocumentEvent;
 import com.intellij.openapi.editor.event.DocumentListener;
@@ -11,8 +24,11 @@ import com.intellij.openapi.editor.event.VisibleAreaListener;
 import com.intellij.openapi.editor.ex.EditorEx;
 import com.intellij.openapi.ide.CopyPasteManager;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.ui.LanguageTextField;
-import com.intellij.ui.components.JBScrollPane;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import org.jetbrains.annotations.NotNull;
 
 import javax.swing.*;
@@ -20,14 +36,20 @@ import java.awt.*;
 import java.awt.datatransfer.StringSelection;
 import java.awt.event.ComponentEvent;
 import java.awt.event.ComponentListener;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.function.BooleanSupplier;
 
 
+/**
+ * The content of the BytecodeBuilder tool window. It is disposed with its
+ * content, or with the project.
+ */
 public class BytecodeBuilderToolWindow
+implements   Disposable
 {
+    private static final Logger LOG = Logger.getInstance(BytecodeBuilderToolWindow.class);
+
     public static final  String CLASS_NAME  = "Container";
     public static final  String METHOD_NAME = "main";
     private static final String PROMPT      =
@@ -39,24 +61,41 @@ public class BytecodeBuilderToolWindow
             "    }\n" +
             "}\n";
 
+    // Longer output is truncated, to keep the memory and the editor responsive.
+    private static final long   MAX_OUTPUT_CHARS = 4L * 1024L * 1024L;
+
 
     public JPanel                           contentPanel               = new JPanel();
     public LanguageTextField                inputField;
-    public JTextArea                        outputText                 = new JTextArea();
-    public JScrollPane                      outputField;
+    public Document                         outputDocument             = EditorFactory.getInstance().createDocument("");
+    public Editor                           outputEditor;
     public JButton                          copyCodeButton             = new JButton("Copy code");
+    public JButton                          roundTripButton            = new JButton("Check round trip");
+    public JButton                          refreshButton              = new JButton("Refresh");
+    public JCheckBox                        hoistConstantsCheckBox     = new JCheckBox("Hoist constants");
+    public JComboBox<String>                compilerComboBox           = new JComboBox<>(new String[] { CompilerBackend.JAVAC, CompilerBackend.ECLIPSE });
     public JButton                          classPathChooserOpenButton = new JButton("Set classpath");
     public JFileChooser                     classPathFileChooser       = new JFileChooser();
     public JLabel                           classPathLabel             = new JLabel("No custom classpath set.");
+    public JLabel                           statsLabel                 = new JLabel();
     public String                           customClassPath            = "";
-    private ScheduledFuture<?>              updateFuture               = null;
-    private final ScheduledExecutorService  executorService      = Executors.newSingleThreadScheduledExecutor();
+    private final UpdateScheduler<Output>   updateScheduler;
+    private volatile UpdateRequest          updateRequest;
+    private long                            snapshotCount;
+    private long                            acceptedSnapshot;
+    private volatile boolean                warmUpCancelled;
     private final Project                   project;
 
 
     public BytecodeBuilderToolWindow(Project project)
     {
-        this.project = project;
+        this.project         = project;
+        this.updateScheduler = new UpdateScheduler<>(AppExecutorUtil.getAppScheduledExecutorService(),
+                                                     BytecodeBuilderApplicationService.getInstance().getExecutor(project),
+                                                     this::generateOutput,
+                                                     (output, generation) -> publishOutputLater(output),
+                                                     output -> output.preview.isCompiled());
+        Disposer.register(BytecodeBuilderProjectService.getInstance(project), this);
 
         // Set up input panel.
         setupInputPanel();
@@ -67,6 +106,18 @@ public class BytecodeBuilderToolWindow
         // Set up the copy code button.
         setUpCopyCodeButton();
 
+        // Set up the round trip button.
+        setUpRoundTripButton();
+
+        // Set up the refresh button.
+        setUpRefreshButton();
+
+        // Set up the output mode check box.
+        setUpHoistConstantsCheckBox();
+
+        // Set up the compiler selection.
+        setUpCompilerComboBox();
+
         // Set up file chooser button etc.
         setUpClasspathChooser();
 
@@ -89,14 +140,7 @@ public class BytecodeBuilderToolWindow
                     @Override
                     public void documentChanged(@NotNull DocumentEvent event)
                     {
-                        if (updateFuture != null)
-                        {
-                            updateFuture.cancel(false);
-                        }
-                        updateFuture = executorService.schedule(() -> {
-                            updateOutputPanel();
-                            updateFuture = null;
-                        }, 500L, TimeUnit.MILLISECONDS);
+                        scheduleUpdate(updateScheduler.getTypingDelayMillis());
                     }
                 }
         );
@@ -105,9 +149,97 @@ public class BytecodeBuilderToolWindow
 
     private void setupOutputPanel()
     {
-        outputField = new JBScrollPane(outputText);
+        // A viewer only lays out the lines that are visible.
+        outputEditor = EditorFactory.getInstance().createViewer(outputDocument, project);
+        Disposer.register(this, () -> EditorFactory.getInstance().releaseEditor(outputEditor));
         // Initialize the output panel.
-        updateOutputPanel();
+        scheduleUpdate(0L);
+    }
+
+
+    private void scheduleUpdate(long delayMillis)
+    {
+        // Take the settings on the EDT.
+        boolean  hoistConstants = hoistConstantsCheckBox.isSelected();
+        String   compiler       = getSelectedCompiler();
+        String   classPath      = customClassPath;
+        Document document       = inputField.getDocument();
+        long     snapshot       = ++snapshotCount;
+
+        // Updates after the initial one come from the user, who needs the
+        // workers more than the warm-up does.
+        if (snapshot > 1L)
+        {
+            warmUpCancelled = true;
+        }
+
+        // Take the text and its stamp in a non-blocking read action. The
+        // platform restarts it if the document changes meanwhile, drops it
+        // for a newer snapshot of this tool window, and expires it with the
+        // tool window. The update itself compiles and prints without holding
+        // any lock of the platform.
+        ReadAction.nonBlocking(() -> new UpdateRequest(document.getText(),
+                                                       document.getModificationStamp(),
+                                                       hoistConstants,
+                                                       compiler,
+                                                       classPath))
+                  .coalesceBy(this)
+                  .expireWith(this)
+                  .submit(AppExecutorUtil.getAppExecutorService())
+                  .onSuccess(request -> acceptUpdateRequest(request, snapshot, delayMillis));
+    }
+
+
+    private synchronized void acceptUpdateRequest(UpdateRequest request, long snapshot, long delayMillis)
+    {
+        // A newer snapshot may have finished first.
+        if (snapshot < acceptedSnapshot)
+        {
+            return;
+        }
+        acceptedSnapshot = snapshot;
+        updateRequest    = request;
+
+        // Pending and running updates are superseded by this one. Updates
+        // without a delay skip the timer as well.
+        if (delayMillis == 0L)
+        {
+            updateScheduler.updateNow();
+        }
+        else
+        {
+            updateScheduler.scheduleUpdate(delayMillis);
+        }
+    }
+
+
+    /**
+     * Warms up the compiler and the printers in the background, at low
+     * priority, on the platform's pooled threads rather than on the
+     * project's workers. The warm-up is skipped or stops as soon as the user
+     * asks for an update, and when the tool window is disposed.
+     */
+    public void warmUp()
+    {
+        BytecodeBuilderProjectService projectService = BytecodeBuilderProjectService.getInstance(project);
+        String                        compiler       = getSelectedCompiler();
+        String                        classPath      = customClassPath;
+
+        AppExecutorUtil.getAppExecutorService().execute(() -> {
+            Thread thread   = Thread.currentThread();
+            int    priority = thread.getPriority();
+            thread.setPriority(Thread.MIN_PRIORITY);
+            try
+            {
+                WarmUp.run(projectService.getCompilerBackend(compiler),
+                           classPath,
+                           () -> warmUpCancelled || project.isDisposed());
+            }
+            finally
+            {
+                thread.setPriority(priority);
+            }
+        });
     }
 
 
@@ -117,6 +249,70 @@ public class BytecodeBuilderToolWindow
     }
 
 
+    private void setUpRoundTripButton()
+    {
+        roundTripButton.setToolTipText("Replay the compiled code on real composers and compare the result with the compiled code.");
+        roundTripButton.addActionListener(e -> {
+            String javaCode  = inputField.getText();
+            String compiler  = getSelectedCompiler();
+            String classPath = customClassPath;
+            BytecodeBuilderApplicationService.getInstance().getExecutor(project).execute(() -> {
+                String report = CodeUtil.checkRoundTrip(BytecodeBuilderProjectService.getInstance(project).getCompilerBackend(compiler),
+                                                        javaCode,
+                                                        classPath,
+                                                        project::isDisposed);
+                ApplicationManager.getApplication().invokeLater(
+                    () -> Messages.showInfoMessage(project, report, "Round Trip"),
+                    project.getDisposed());
+            });
+        });
+    }
+
+
+    private void setUpRefreshButton()
+    {
+        // With slow updates, the typing delay gets long, so the output can
+        // also be updated on request, right away.
+        refreshButton.setToolTipText("Update the output now, without waiting for a pause in typing.");
+        refreshButton.addActionListener(e -> scheduleUpdate(0L));
+    }
+
+
+    private void setUpHoistConstantsCheckBox()
+    {
+        hoistConstantsCheckBox.setToolTipText("Add each constant to the constant pool once, before the code fragment.");
+        hoistConstantsCheckBox.addActionListener(e -> scheduleUpdate(0L));
+    }
+
+
+    private void setUpCompilerComboBox()
+    {
+        compilerComboBox.setToolTipText("The compiler that generates the bytecode: javac, or the Eclipse compiler.");
+        compilerComboBox.addActionListener(e -> {
+            // Set up the newly selected compiler before the update needs it.
+            String compiler  = getSelectedCompiler();
+            String classPath = customClassPath;
+            BytecodeBuilderApplicationService.getInstance().getExecutor(project).execute(() -> {
+                try
+                {
+                    BytecodeBuilderProjectService.getInstance(project).getCompilerBackend(compiler).prepare(classPath);
+                }
+                catch (IOException ex)
+                {
+                    LOG.warn("Can't prepare the class path [" + classPath + "] for " + compiler, ex);
+                }
+            });
+            scheduleUpdate(0L);
+        });
+    }
+
+
+    private String getSelectedCompiler()
+    {
+        return (String)compilerComboBox.getSelectedItem();
+    }
+
+
     private void setUpClasspathChooser()
     {
         classPathFileChooser.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
@@ -126,6 +322,20 @@ public class BytecodeBuilderToolWindow
             {
                 customClassPath = classPathFileChooser.getSelectedFile().getAbsolutePath();
                 classPathLabel.setText("Using custom class path: " + customClassPath);
+
+                // Index the new class path before the next edit needs it.
+                String compiler  = getSelectedCompiler();
+                String classPath = customClassPath;
+                BytecodeBuilderApplicationService.getInstance().getExecutor(project).execute(() -> {
+                    try
+                    {
+                        BytecodeBuilderProjectService.getInstance(project).getCompilerBackend(compiler).prepare(classPath);
+                    }
+                    catch (IOException ex)
+                    {
+                        LOG.warn("Can't index the class path [" + classPath + "]", ex);
+                    }
+                });
             }
         });
     }
@@ -142,6 +352,14 @@ public class BytecodeBuilderToolWindow
         c.fill = GridBagConstraints.HORIZONTAL;
         containerPanel2.add(copyCodeButton, c);
         c.gridx = 0;
+        c.gridy = 0;
+        c.weightx = 0.8;
+        containerPanel2.add(hoistConstantsCheckBox, c);
+        c.gridx = 2;
+        c.gridy = 0;
+        c.weightx = 0.2;
+        containerPanel2.add(compilerComboBox, c);
+        c.gridx = 0;
         c.gridy = 1;
         c.weightx = 0.8;
         containerPanel2.add(classPathLabel, c);
@@ -149,12 +367,26 @@ public class BytecodeBuilderToolWindow
         c.gridy = 1;
         c.weightx = 0.2;
         containerPanel2.add(classPathChooserOpenButton, c);
+        c.gridx = 2;
+        c.gridy = 1;
+        c.weightx = 0.2;
+        containerPanel2.add(roundTripButton, c);
+        c.gridx = 0;
+        c.gridy = 2;
+        c.weightx = 1.0;
+        c.gridwidth = 2;
+        containerPanel2.add(statsLabel, c);
+        c.gridwidth = 1;
+        c.gridx = 2;
+        c.gridy = 2;
+        c.weightx = 0.2;
+        containerPanel2.add(refreshButton, c);
         c.gridx = 0;
         c.gridy = 0;
         c.weightx = 1.0;
         c.weighty = 0.8;
         c.fill = GridBagConstraints.BOTH;
-        containerPanel.add(outputField, c);
+        containerPanel.add(outputEditor.getComponent(), c);
         c.gridy = 1;
         c.weighty = 0.2;
         containerPanel.add(containerPanel2, c);
@@ -162,19 +394,141 @@ public class BytecodeBuilderToolWindow
     }
 
 
-    private void updateOutputPanel()
+    private Output generateOutput(BooleanSupplier cancelled)
     {
-        outputText.setText(CodeUtil.getProGuardInstructions(inputField.getText(), customClassPath));
+        // The latest request; a newer one supersedes this update anyway.
+        UpdateRequest request = updateRequest;
+
+        Preview preview = Preview.generate(BytecodeBuilderProjectService.getInstance(project).getCompilerBackend(request.compiler),
+                                           BytecodeBuilderApplicationService.getInstance().getResultCache(),
+                                           request.javaCode,
+                                           request.classPath,
+                                           request.hoistConstants,
+                                           () -> cancelled.getAsBoolean() || project.isDisposed(),
+                                           MAX_OUTPUT_CHARS,
+                                           BytecodeBuilderApplicationService.getInstance().getExecutor(project));
+
+        return new Output(preview, request.stamp);
+    }
+
+
+    private void publishOutputLater(Output output)
+    {
+        ApplicationManager.getApplication().invokeLater(() -> publishOutput(output),
+                                                        ModalityState.defaultModalityState(),
+                                                        project.getDisposed());
+    }
+
+
+    private void publishOutput(Output output)
+    {
+        // Never publish the output for an older version of the document.
+        if (output.stamp != inputField.getDocument().getModificationStamp())
+        {
+            return;
+        }
+
+        // Keep the last valid code visible while the input has syntax errors.
+        // Without any code yet, show the errors instead.
+        Preview preview = output.preview;
+        if (preview.syntaxErrors != null)
+        {
+            statsLabel.setText("Syntax error; showing the code for the last valid input. " + firstLine(preview.syntaxErrors));
+            statsLabel.setToolTipText(preview.syntaxErrors);
+            if (outputDocument.getTextLength() == 0)
+            {
+                String errors = StringUtil.convertLineSeparators(preview.syntaxErrors);
+                ApplicationManager.getApplication().runWriteAction(() -> outputDocument.setText(errors));
+            }
+            return;
+        }
+
+        // Only replace the lines that changed, keeping the layout and the
+        // scroll position of the rest. Cached results are often identical.
+        // The text already has '\n' line separators, like documents, and the
+        // changed part is passed as a view rather than a copy.
+        String     text = preview.text;
+        OutputDiff diff = OutputDiff.compute(outputDocument.getImmutableCharSequence(), text);
+        if (!diff.isEmpty())
+        {
+            ApplicationManager.getApplication().runWriteAction(() ->
+                outputDocument.replaceString(diff.start,
+                                             diff.oldEnd,
+                                             CharBuffer.wrap(text, diff.start, diff.newEnd)));
+        }
+
+        // Show where the time went.
+        String summary = BytecodeBuilderProjectService.getInstance(project).getPipelineMetrics().record(preview.stats);
+        LOG.debug("Generated composer code in " + preview.stats + " [" + summary + "]");
+        statsLabel.setText("Last run: " + preview.stats);
+        statsLabel.setToolTipText(summary);
+    }
+
+
+    private static String firstLine(String text)
+    {
+        int index = text.indexOf('\n');
+        return index < 0 ? text : text.substring(0, index).strip();
     }
 
 
     private void copyCodeToClipBoard() {
-        CopyPasteManager.getInstance().setContents(new StringSelection(outputText.getText()));
+        CopyPasteManager.getInstance().setContents(new StringSelection(outputDocument.getText()));
+    }
+
+
+    // Implementations for Disposable.
+
+    @Override
+    public void dispose()
+    {
+        warmUpCancelled = true;
+        updateScheduler.cancel();
     }
 
 
     // Inner classes.
 
+    /**
+     * A version of the document and the settings to generate its output with.
+     */
+    private static class UpdateRequest
+    {
+        private final String  javaCode;
+        private final long    stamp;
+        private final boolean hoistConstants;
+        private final String  compiler;
+        private final String  classPath;
+
+
+        private UpdateRequest(String javaCode, long stamp, boolean hoistConstants, String compiler, String classPath)
+        {
+            this.javaCode       = javaCode;
+            this.stamp          = stamp;
+            this.hoistConstants = hoistConstants;
+            this.compiler       = compiler;
+            this.classPath      = classPath;
+        }
+    }
+
+
+    /**
+     * The generated code, or the syntax errors, for a version of the document.
+     */
+    private static class Output
+    {
+        private final Preview preview;
+        private final long    stamp;
+
+
+        private Output(Preview preview, long stamp)
+        {
+            this.preview = preview;
+            this.stamp   = stamp;
+        }
+    }
+
+
     private static class CustomLanguageTextField extends LanguageTextField
     {
         public CustomLanguageTextField(Language language, Project project, String text, boolean oneLineMode)
@@ -15,8 +15,14 @@ implements   ToolWindowFactory, DumbAware
     @Override
     public void createToolWindowContent(@NotNull Project project, @NotNull ToolWindow toolWindow)
     {
+        BytecodeBuilderToolWindow bytecodeBuilderToolWindow = new BytecodeBuilderToolWindow(project);
+
         Content content = ContentFactory.getInstance().createContent(
-                new BytecodeBuilderToolWindow(project).contentPanel, "", false);
+                bytecodeBuilderToolWindow.contentPanel, "", false);
+        content.setDisposer(bytecodeBuilderToolWindow);
         toolWindow.getContentManager().addContent(content);
+
+        // Make the first previews after the initial one fast.
+        bytecodeBuilderToolWindow.warmUp();
     }
 }
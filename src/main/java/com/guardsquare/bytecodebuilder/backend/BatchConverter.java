@@ -0,0 +1,223 @@
+package com.guardsquare.bytecodebuilder.backend;
+
+import proguard.classfile.Clazz;
+import proguard.classfile.ProgramClass;
+import proguard.classfile.visitor.ClassVisitor;
+import proguard.io.*;
+import proguard.util.ExtensionMatcher;
+import proguard.util.ListParser;
+import proguard.util.NameParser;
+import proguard.util.StringMatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Command-line entry point that converts the methods of existing class files
+ * into composer code, writing one output file per class.
+ *
+ * Usage:
+ *     BatchConverter input.jar|input_directory output_directory [method_name_filter [method_descriptor_filter]]
+ *
+ * The filters are ProGuard name filters, like "get*,set*" or "!<init>". The
+ * classes are streamed from the input: each class is converted and written
+ * by a worker thread as soon as it has been read. At most a few classes per
+ * worker are waiting at any time; beyond that the reading thread converts
+ * classes itself, which holds up reading until the workers catch up.
+ */
+public class BatchConverter implements ClassVisitor
+{
+    private static final int QUEUED_CLASSES_PER_THREAD = 4;
+
+    private final Path               outputDirectory;
+    private final StringMatcher      methodNameMatcher;
+    private final StringMatcher      methodDescriptorMatcher;
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger      classCount   = new AtomicInteger();
+    private final AtomicInteger      failureCount = new AtomicInteger();
+
+
+    public static void main(String[] args)
+    {
+        if (args.length < 2 || args.length > 4)
+        {
+            System.err.println("Usage: java " + BatchConverter.class.getName() +
+                               " input.jar|input_directory output_directory [method_name_filter [method_descriptor_filter]]");
+            System.exit(1);
+        }
+
+        BatchConverter converter =
+            new BatchConverter(Path.of(args[1]),
+                               args.length > 2 ? args[2] : null,
+                               args.length > 3 ? args[3] : null,
+                               Runtime.getRuntime().availableProcessors());
+        try
+        {
+            converter.convert(new File(args[0]));
+        }
+        catch (IOException e)
+        {
+            System.err.println("Can't convert [" + args[0] + "]: " + e.getMessage());
+            System.exit(1);
+        }
+
+        System.out.println("Converted " + converter.getClassCount() + " classes" +
+                           (converter.getFailureCount() > 0 ? ", " + converter.getFailureCount() + " failed." : "."));
+        System.exit(converter.getFailureCount() > 0 ? 1 : 0);
+    }
+
+
+    /**
+     * Creates a new converter.
+     * @param outputDirectory         the directory in which the output files are written.
+     * @param methodNameFilter        an optional filter for the names of the methods to convert.
+     * @param methodDescriptorFilter  an optional filter for the descriptors of the methods to convert.
+     * @param threadCount             the number of worker threads.
+     */
+    public BatchConverter(Path   outputDirectory,
+                          String methodNameFilter,
+                          String methodDescriptorFilter,
+                          int    threadCount)
+    {
+        this.outputDirectory         = outputDirectory;
+        this.methodNameMatcher       = methodNameFilter       == null ? null : new ListParser(new NameParser()).parse(methodNameFilter);
+        this.methodDescriptorMatcher = methodDescriptorFilter == null ? null : new ListParser(new NameParser()).parse(methodDescriptorFilter);
+        this.executor                = new ThreadPoolExecutor(threadCount,
+                                                              threadCount,
+                                                              0L,
+                                                              TimeUnit.MILLISECONDS,
+                                                              new ArrayBlockingQueue<>(threadCount * QUEUED_CLASSES_PER_THREAD),
+                                                              new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+
+    /**
+     * Converts all classes in the given jar or directory, including the
+     * classes in jars inside directories, and waits until all output files
+     * have been written.
+     */
+    public void convert(File input) throws IOException
+    {
+        DataEntrySource source = input.isDirectory() ?
+            new DirectorySource(input) :
+            new FileSource(input);
+
+        // Parse only the parts of the classes that get printed.
+        DataEntryReader classReader =
+            new ClassFilter(dataEntry -> {
+                // Leave closing the stream to the entry, which may be part of a jar.
+                try
+                {
+                    InputStream inputStream = dataEntry.getInputStream();
+                    visitProgramClass(SelectiveClassReader.read(ByteBuffer.wrap(inputStream.readAllBytes())));
+                }
+                finally
+                {
+                    dataEntry.closeInputStream();
+                }
+            });
+
+        try
+        {
+            source.pumpDataEntries(
+                new FilteredDataEntryReader(
+                new DataEntryNameFilter(new ExtensionMatcher(".jar")),
+                    new JarReader(classReader),
+                    classReader));
+        }
+        finally
+        {
+            executor.shutdown();
+            try
+            {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing the output files", e);
+            }
+        }
+    }
+
+
+    public int getClassCount()
+    {
+        return classCount.get();
+    }
+
+
+    public int getFailureCount()
+    {
+        return failureCount.get();
+    }
+
+
+    // Implementations for ClassVisitor.
+
+    @Override
+    public void visitAnyClass(Clazz clazz) {}
+
+
+    @Override
+    public void visitProgramClass(ProgramClass programClass)
+    {
+        // The class is only referenced by this task, so it is garbage once it's written.
+        executor.execute(() -> convertClass(programClass));
+    }
+
+
+    // Small utility methods.
+
+    private void convertClass(ProgramClass programClass)
+    {
+        try
+        {
+            List<CodeUtil.MethodCode> methodCodes = CodeUtil.collectMethodCodes(List.of(programClass));
+            methodCodes.removeIf(methodCode -> !accepts(methodCode));
+            if (methodCodes.isEmpty())
+            {
+                return;
+            }
+
+            Path outputFile = outputDirectory.resolve(programClass.getName() + ".txt");
+            Files.createDirectories(outputFile.getParent());
+
+            try (Writer writer = Files.newBufferedWriter(outputFile, StandardCharsets.UTF_8))
+            {
+                StringBuilder builder = new StringBuilder();
+                CodeUtil.appendComposerDeclarations(builder);
+                writer.append(builder);
+
+                // Write each method as soon as it's printed.
+                for (CodeUtil.MethodCode methodCode : methodCodes)
+                {
+                    writer.write(CodeUtil.printMethodCode(methodCode, false, () -> false));
+                }
+            }
+
+            classCount.incrementAndGet();
+        }
+        catch (IOException | RuntimeException e)
+        {
+            failureCount.incrementAndGet();
+            System.err.println("Can't convert class [" + programClass.getName() + "]: " + e);
+        }
+    }
+
+
+    private boolean accepts(CodeUtil.MethodCode methodCode)
+    {
+        return (methodNameMatcher       == null || methodNameMatcher.matches(methodCode.method.getName(methodCode.clazz))) &&
+               (methodDescriptorMatcher == null || methodDescriptorMatcher.matches(methodCode.method.getDescriptor(methodCode.clazz)));
+    }
+}
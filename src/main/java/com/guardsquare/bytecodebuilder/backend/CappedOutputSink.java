@@ -0,0 +1,63 @@
+package com.guardsquare.bytecodebuilder.backend;
+
+import static com.guardsquare.bytecodebuilder.backend.CodeUtil.NEW_LINE;
+
+/**
+ * Passes at most a given number of characters on to another sink, followed
+ * by a truncation marker if there was more.
+ */
+public class CappedOutputSink implements OutputSink
+{
+    private final OutputSink sink;
+    private final long       maxChars;
+    private long             charCount;
+
+    // Generators may check whether the sink is full from other threads.
+    private volatile boolean truncated;
+
+
+    public CappedOutputSink(OutputSink sink, long maxChars)
+    {
+        this.sink     = sink;
+        this.maxChars = maxChars;
+    }
+
+
+    public boolean isTruncated()
+    {
+        return truncated;
+    }
+
+
+    // Implementations for OutputSink.
+
+    @Override
+    public void write(CharSequence chunk)
+    {
+        if (truncated)
+        {
+            return;
+        }
+
+        long remaining = maxChars - charCount;
+        if (chunk.length() <= remaining)
+        {
+            sink.write(chunk);
+            charCount += chunk.length();
+        }
+        else
+        {
+            sink.write(chunk.subSequence(0, (int)remaining));
+            sink.write(NEW_LINE + "// Output truncated after " + maxChars + " characters." + NEW_LINE);
+            charCount = maxChars;
+            truncated = true;
+        }
+    }
+
+
+    @Override
+    public boolean isFull()
+    {
+        return truncated || sink.isFull();
+    }
+}
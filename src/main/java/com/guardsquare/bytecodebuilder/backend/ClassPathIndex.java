@@ -0,0 +1,643 @@
+package com.guardsquare.bytecodebuilder.backend;
+
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import java.io.*;
+import java.net.URI;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Index of the class and source files on a class path, by package.
+ *
+ * Jars are indexed by reading their central directories through memory
+ * mappings, without inflating anything. Directories are walked once and then
+ * watched, so that changes only cause the affected package directories to be
+ * rescanned. The compiler's package listings are then served from memory
+ * instead of enumerating every class path entry for every package.
+ *
+ * The reported directory changes are counted, so callers can tell cheaply
+ * whether the class path has changed, without walking it.
+ */
+public class ClassPathIndex implements Closeable
+{
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int CENTRAL_DIRECTORY_SIGNATURE        = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_LENGTH    = 22;
+    private static final int CENTRAL_DIRECTORY_HEADER_LENGTH    = 46;
+    private static final int MAX_COMMENT_LENGTH                 = 0xffff;
+
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+
+    private final List<Root>                   roots           = new ArrayList<>();
+    private final Map<String, List<Root>>      rootsByPackage  = new HashMap<>();
+    private final Map<WatchKey, DirectoryRoot> rootsByWatchKey = new HashMap<>();
+    private WatchService                       watchService;
+
+    // Distinguishes the change counts of different indexes.
+    private final long                         id              = NEXT_ID.getAndIncrement();
+    private long                               changeCount;
+
+
+    /**
+     * Creates a new index of the given class path, which consists of jars
+     * and directories separated by the platform's path separator.
+     */
+    public ClassPathIndex(String classPath) throws IOException
+    {
+        for (String entry : classPath.split(File.pathSeparator))
+        {
+            if (entry.isEmpty())
+            {
+                continue;
+            }
+
+            Path path = Paths.get(entry);
+            if (Files.isDirectory(path))
+            {
+                if (watchService == null)
+                {
+                    watchService = path.getFileSystem().newWatchService();
+                }
+                roots.add(new DirectoryRoot(roots.size(), path));
+            }
+            else if (Files.isRegularFile(path))
+            {
+                roots.add(new JarRoot(roots.size(), path));
+            }
+        }
+
+        for (Root root : roots)
+        {
+            root.index();
+        }
+    }
+
+
+    /**
+     * Returns the files of the given kinds in the given package, in class
+     * path order.
+     */
+    public synchronized List<JavaFileObject> list(String packageName, Set<JavaFileObject.Kind> kinds)
+    {
+        processDirectoryChanges();
+
+        List<Root> packageRoots = rootsByPackage.get(packageName);
+        if (packageRoots == null)
+        {
+            return Collections.emptyList();
+        }
+
+        List<JavaFileObject> files = new ArrayList<>();
+        for (Root root : packageRoots)
+        {
+            for (String entryName : root.entriesByPackage.get(packageName))
+            {
+                JavaFileObject.Kind kind = kindOf(entryName);
+                if (kinds.contains(kind))
+                {
+                    files.add(new IndexedFileObject(root, entryName, kind));
+                }
+            }
+        }
+        return files;
+    }
+
+
+    /**
+     * Returns a version of the directories of the class path, which changes
+     * whenever any of their files change. Jars aren't watched, so the version
+     * is empty if there are no directories.
+     */
+    public synchronized String getDirectoryVersion()
+    {
+        if (watchService == null)
+        {
+            return "";
+        }
+
+        processDirectoryChanges();
+
+        return id + "." + changeCount;
+    }
+
+
+    /**
+     * Returns the binary name of the given file if it was listed by an
+     * index, or null otherwise.
+     */
+    public static String inferBinaryName(JavaFileObject file)
+    {
+        return file instanceof IndexedFileObject ?
+            ((IndexedFileObject)file).binaryName :
+            null;
+    }
+
+
+    /**
+     * Returns whether the given file was listed by an index.
+     */
+    public static boolean isIndexed(Object file)
+    {
+        return file instanceof IndexedFileObject;
+    }
+
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        for (Root root : roots)
+        {
+            root.close();
+        }
+        if (watchService != null)
+        {
+            watchService.close();
+        }
+    }
+
+
+    // Small utility methods.
+
+    /**
+     * Rescans the package directories for which the watch service has
+     * reported changes since the last listing.
+     */
+    private void processDirectoryChanges()
+    {
+        if (watchService == null)
+        {
+            return;
+        }
+
+        WatchKey key;
+        while ((key = watchService.poll()) != null)
+        {
+            key.pollEvents();
+
+            DirectoryRoot root      = rootsByWatchKey.get(key);
+            Path          directory = (Path)key.watchable();
+            if (root != null)
+            {
+                changeCount++;
+                if (key.reset())
+                {
+                    root.scanDirectory(directory);
+                }
+                else
+                {
+                    // The directory is gone.
+                    rootsByWatchKey.remove(key);
+                    root.removeDirectory(directory);
+                }
+            }
+        }
+    }
+
+
+    private void addPackage(Root root, String packageName, List<String> entryNames)
+    {
+        root.entriesByPackage.put(packageName, entryNames);
+
+        List<Root> packageRoots = rootsByPackage.computeIfAbsent(packageName, name -> new ArrayList<>());
+        if (!packageRoots.contains(root))
+        {
+            // Keep the roots in class path order.
+            int index = 0;
+            while (index < packageRoots.size() && packageRoots.get(index).position < root.position)
+            {
+                index++;
+            }
+            packageRoots.add(index, root);
+        }
+    }
+
+
+    private static JavaFileObject.Kind kindOf(String entryName)
+    {
+        return entryName.endsWith(JavaFileObject.Kind.CLASS.extension) ? JavaFileObject.Kind.CLASS  :
+               entryName.endsWith(JavaFileObject.Kind.SOURCE.extension) ? JavaFileObject.Kind.SOURCE :
+                                                                          JavaFileObject.Kind.OTHER;
+    }
+
+
+    private static boolean isIndexedEntry(String entryName)
+    {
+        return (entryName.endsWith(JavaFileObject.Kind.CLASS.extension) ||
+                entryName.endsWith(JavaFileObject.Kind.SOURCE.extension)) &&
+               !entryName.startsWith("META-INF/")                          &&
+               !entryName.endsWith("module-info.class");
+    }
+
+
+    private static String packageNameOf(String entryName)
+    {
+        int index = entryName.lastIndexOf('/');
+        return index < 0 ? "" : entryName.substring(0, index).replace('/', '.');
+    }
+
+
+    // Inner classes.
+
+    /**
+     * A single jar or directory on the class path.
+     */
+    private abstract class Root implements Closeable
+    {
+        protected final int                       position;
+        protected final Path                      path;
+        protected final Map<String, List<String>> entriesByPackage = new HashMap<>();
+
+
+        protected Root(int position, Path path)
+        {
+            this.position = position;
+            this.path     = path;
+        }
+
+
+        public abstract void index() throws IOException;
+
+        public abstract URI toUri(String entryName);
+
+        public abstract InputStream openInputStream(String entryName) throws IOException;
+
+
+        public void removePackage(String packageName)
+        {
+            entriesByPackage.remove(packageName);
+
+            List<Root> packageRoots = rootsByPackage.get(packageName);
+            if (packageRoots != null)
+            {
+                packageRoots.remove(this);
+                if (packageRoots.isEmpty())
+                {
+                    rootsByPackage.remove(packageName);
+                }
+            }
+        }
+
+
+        @Override
+        public void close() throws IOException {}
+    }
+
+
+    /**
+     * A jar whose entries are read from its memory-mapped central directory.
+     */
+    private class JarRoot extends Root
+    {
+        private ZipFile zipFile;
+
+
+        public JarRoot(int position, Path path)
+        {
+            super(position, path);
+        }
+
+
+        @Override
+        public void index() throws IOException
+        {
+            Map<String, List<String>> entries = new HashMap<>();
+            if (!readCentralDirectory(entries))
+            {
+                // Fall back on the regular API, e.g. for zip64 archives.
+                for (ZipEntry entry : Collections.list(zipFile().entries()))
+                {
+                    addEntry(entries, entry.getName());
+                }
+            }
+
+            entries.forEach((packageName, entryNames) -> addPackage(this, packageName, entryNames));
+        }
+
+
+        @Override
+        public URI toUri(String entryName)
+        {
+            return URI.create("jar:" + path.toUri() + "!/" + entryName);
+        }
+
+
+        @Override
+        public synchronized InputStream openInputStream(String entryName) throws IOException
+        {
+            ZipFile  zipFile = zipFile();
+            ZipEntry entry   = zipFile.getEntry(entryName);
+            if (entry == null)
+            {
+                throw new FileNotFoundException(toUri(entryName).toString());
+            }
+            return zipFile.getInputStream(entry);
+        }
+
+
+        @Override
+        public synchronized void close() throws IOException
+        {
+            if (zipFile != null)
+            {
+                zipFile.close();
+                zipFile = null;
+            }
+        }
+
+
+        private synchronized ZipFile zipFile() throws IOException
+        {
+            if (zipFile == null)
+            {
+                zipFile = new ZipFile(path.toFile());
+            }
+            return zipFile;
+        }
+
+
+        /**
+         * Collects the entry names from the central directory, returning
+         * false if the archive format isn't supported.
+         */
+        private boolean readCentralDirectory(Map<String, List<String>> entries) throws IOException
+        {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+            {
+                long size = channel.size();
+                if (size < END_OF_CENTRAL_DIRECTORY_LENGTH)
+                {
+                    return false;
+                }
+
+                int              tailLength = (int)Math.min(size, END_OF_CENTRAL_DIRECTORY_LENGTH + MAX_COMMENT_LENGTH);
+                MappedByteBuffer tail       = channel.map(FileChannel.MapMode.READ_ONLY, size - tailLength, tailLength);
+                tail.order(ByteOrder.LITTLE_ENDIAN);
+
+                int end = tailLength - END_OF_CENTRAL_DIRECTORY_LENGTH;
+                while (end >= 0 && tail.getInt(end) != END_OF_CENTRAL_DIRECTORY_SIGNATURE)
+                {
+                    end--;
+                }
+                if (end < 0)
+                {
+                    return false;
+                }
+
+                int  entryCount = tail.getShort(end + 10) & 0xffff;
+                long cdSize     = tail.getInt(end + 12) & 0xffffffffL;
+                long cdOffset   = tail.getInt(end + 16) & 0xffffffffL;
+                if (entryCount == 0xffff || cdSize == 0xffffffffL || cdOffset == 0xffffffffL ||
+                    cdOffset + cdSize > size)
+                {
+                    return false;
+                }
+
+                MappedByteBuffer cd = channel.map(FileChannel.MapMode.READ_ONLY, cdOffset, cdSize);
+                cd.order(ByteOrder.LITTLE_ENDIAN);
+
+                byte[] nameBytes = new byte[256];
+                int    offset    = 0;
+                while (offset + CENTRAL_DIRECTORY_HEADER_LENGTH <= cdSize &&
+                       cd.getInt(offset) == CENTRAL_DIRECTORY_SIGNATURE)
+                {
+                    int nameLength    = cd.getShort(offset + 28) & 0xffff;
+                    int extraLength   = cd.getShort(offset + 30) & 0xffff;
+                    int commentLength = cd.getShort(offset + 32) & 0xffff;
+
+                    if (nameBytes.length < nameLength)
+                    {
+                        nameBytes = new byte[nameLength];
+                    }
+                    cd.get(offset + CENTRAL_DIRECTORY_HEADER_LENGTH, nameBytes, 0, nameLength);
+
+                    // Only decode the names of class and source files.
+                    if (nameLength > 0 && nameBytes[nameLength - 1] != '/' && hasIndexedExtension(nameBytes, nameLength))
+                    {
+                        addEntry(entries, new String(nameBytes, 0, nameLength, StandardCharsets.UTF_8));
+                    }
+
+                    offset += CENTRAL_DIRECTORY_HEADER_LENGTH + nameLength + extraLength + commentLength;
+                }
+
+                return true;
+            }
+        }
+
+
+        private boolean hasIndexedExtension(byte[] nameBytes, int nameLength)
+        {
+            return endsWith(nameBytes, nameLength, JavaFileObject.Kind.CLASS.extension) ||
+                   endsWith(nameBytes, nameLength, JavaFileObject.Kind.SOURCE.extension);
+        }
+
+
+        private boolean endsWith(byte[] nameBytes, int nameLength, String suffix)
+        {
+            int suffixLength = suffix.length();
+            if (nameLength < suffixLength)
+            {
+                return false;
+            }
+            for (int index = 0; index < suffixLength; index++)
+            {
+                if (nameBytes[nameLength - suffixLength + index] != suffix.charAt(index))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+
+        private void addEntry(Map<String, List<String>> entries, String entryName)
+        {
+            if (isIndexedEntry(entryName))
+            {
+                entries.computeIfAbsent(packageNameOf(entryName), name -> new ArrayList<>()).add(entryName);
+            }
+        }
+    }
+
+
+    /**
+     * A directory whose package directories are watched for changes.
+     */
+    private class DirectoryRoot extends Root
+    {
+        // The directories that are registered with the watch service.
+        private final Set<Path> scannedDirectories = new HashSet<>();
+
+
+        public DirectoryRoot(int position, Path path)
+        {
+            super(position, path);
+        }
+
+
+        @Override
+        public void index() throws IOException
+        {
+            scanDirectory(path);
+        }
+
+
+        @Override
+        public URI toUri(String entryName)
+        {
+            return path.resolve(entryName).toUri();
+        }
+
+
+        @Override
+        public InputStream openInputStream(String entryName) throws IOException
+        {
+            return Files.newInputStream(path.resolve(entryName));
+        }
+
+
+        /**
+         * Indexes the files in the given package directory, registers it,
+         * and scans its subdirectories that haven't been scanned yet.
+         */
+        public void scanDirectory(Path directory)
+        {
+            String       packageName = packageName(directory);
+            List<String> entryNames  = new ArrayList<>();
+            List<Path>   directories = new ArrayList<>();
+
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory))
+            {
+                for (Path child : stream)
+                {
+                    if (Files.isDirectory(child))
+                    {
+                        directories.add(child);
+                    }
+                    else
+                    {
+                        String entryName = path.relativize(child).toString().replace(File.separatorChar, '/');
+                        if (isIndexedEntry(entryName))
+                        {
+                            entryNames.add(entryName);
+                        }
+                    }
+                }
+
+                rootsByWatchKey.put(directory.register(watchService,
+                                                       StandardWatchEventKinds.ENTRY_CREATE,
+                                                       StandardWatchEventKinds.ENTRY_DELETE,
+                                                       StandardWatchEventKinds.ENTRY_MODIFY),
+                                    this);
+                scannedDirectories.add(directory);
+            }
+            catch (IOException e)
+            {
+                removePackage(packageName);
+                return;
+            }
+
+            if (entryNames.isEmpty())
+            {
+                removePackage(packageName);
+            }
+            else
+            {
+                Collections.sort(entryNames);
+                addPackage(this, packageName, entryNames);
+            }
+
+            for (Path subdirectory : directories)
+            {
+                // New directories appear in change events of their parent.
+                if (!scannedDirectories.contains(subdirectory))
+                {
+                    scanDirectory(subdirectory);
+                }
+            }
+        }
+
+
+        /**
+         * Forgets the given directory, which is no longer watched, and scans
+         * it again if it has been recreated in the meantime.
+         */
+        public void removeDirectory(Path directory)
+        {
+            scannedDirectories.remove(directory);
+            removePackage(packageName(directory));
+
+            if (Files.isDirectory(directory))
+            {
+                scanDirectory(directory);
+            }
+        }
+
+
+        public String packageName(Path directory)
+        {
+            return path.relativize(directory).toString().replace(File.separatorChar, '.');
+        }
+    }
+
+
+    /**
+     * A class or source file that was listed from the index.
+     */
+    private static class IndexedFileObject extends SimpleJavaFileObject
+    {
+        private final Root   root;
+        private final String entryName;
+        private final String binaryName;
+
+
+        public IndexedFileObject(Root root, String entryName, Kind kind)
+        {
+            super(root.toUri(entryName), kind);
+            this.root       = root;
+            this.entryName  = entryName;
+            this.binaryName = entryName.substring(0, entryName.length() - kind.extension.length()).replace('/', '.');
+        }
+
+
+        @Override
+        public String getName()
+        {
+            return root.path + "(" + entryName + ")";
+        }
+
+
+        @Override
+        public boolean isNameCompatible(String simpleName, Kind kind)
+        {
+            return this.kind == kind &&
+                   entryName.endsWith(simpleName + kind.extension) &&
+                   (entryName.length() == simpleName.length() + kind.extension.length() ||
+                    entryName.charAt(entryName.length() - simpleName.length() - kind.extension.length() - 1) == '/');
+        }
+
+
+        @Override
+        public InputStream openInputStream() throws IOException
+        {
+            return root.openInputStream(entryName);
+        }
+
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) throws IOException
+        {
+            try (InputStream inputStream = openInputStream())
+            {
+                return new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+            }
+        }
+    }
+}
@@ -1,7 +1,5 @@
 package com.guardsquare.bytecodebuilder.backend;
 
-import org.jetbrains.annotations.NotNull;
-import proguard.classfile.ClassPool;
 import proguard.classfile.Clazz;
 import proguard.classfile.Method;
 import proguard.classfile.attribute.Attribute;
@@ -9,154 +7,411 @@ import proguard.classfile.attribute.CodeAttribute;
 import proguard.classfile.attribute.visitor.AllAttributeVisitor;
 import proguard.classfile.attribute.visitor.AttributeNameFilter;
 import proguard.classfile.attribute.visitor.AttributeVisitor;
-import proguard.classfile.attribute.visitor.MultiAttributeVisitor;
 import proguard.classfile.constant.ClassConstant;
 import proguard.classfile.constant.visitor.ConstantVisitor;
-import proguard.classfile.instruction.Instruction;
-import proguard.classfile.instruction.visitor.InstructionVisitor;
-import proguard.classfile.util.BranchTargetFinder;
-import proguard.classfile.visitor.AllMethodVisitor;
-import proguard.classfile.visitor.ClassPoolFiller;
-import proguard.classfile.visitor.MemberNameFilter;
-import proguard.io.ClassReader;
-import proguard.io.DataEntry;
-import proguard.io.DataEntrySource;
 
 import javax.tools.*;
 import java.io.*;
 import java.net.URI;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
 
 import static com.guardsquare.bytecodebuilder.BytecodeBuilderToolWindow.CLASS_NAME;
 import static com.guardsquare.bytecodebuilder.BytecodeBuilderToolWindow.METHOD_NAME;
 
 public class CodeUtil {
+    static final String NEW_LINE = System.lineSeparator();
+
+    // Larger printed instructions aren't worth a second copy in the cache.
+    private static final int MAX_CACHED_CHARS = 1024 * 1024;
+
+    // Methods are printed by at most this many threads, including the
+    // calling one, so a large snippet leaves workers for other requests.
+    private static final int PRINT_PARALLELISM = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
     public static String getProGuardInstructions(String javaCode, String customClassPath) {
+        try (CompilationService compilationService = new CompilationService()) {
+            return getProGuardInstructions(compilationService, new ResultCache(), javaCode, customClassPath, false, () -> false);
+        }
+    }
+
+    /**
+     * Returns the composer code for the given source. If hoistConstants is
+     * set, the constants are added to the constant pool once, up front, instead
+     * of at each instruction. The computation is aborted with a
+     * {@link CancellationException} as soon as the given supplier reports that
+     * it has been cancelled, e.g. by a newer edit.
+     */
+    public static String getProGuardInstructions(CompilerBackend compilationService, ResultCache resultCache, String javaCode, String customClassPath, boolean hoistConstants, BooleanSupplier cancelled) {
+        return getProGuardInstructions(compilationService, resultCache, javaCode, customClassPath, hoistConstants, cancelled, new PipelineStats());
+    }
+
+    /**
+     * Returns the composer code for the given source, like above, and fills
+     * out the given statistics along the way.
+     */
+    public static String getProGuardInstructions(CompilerBackend compilationService, ResultCache resultCache, String javaCode, String customClassPath, boolean hoistConstants, BooleanSupplier cancelled, PipelineStats stats) {
+        return getProGuardInstructions(compilationService, resultCache, javaCode, customClassPath, hoistConstants, cancelled, stats, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * Returns the composer code for the given source, like above, truncated
+     * after the given number of characters. Printing stops as soon as the
+     * output is full. Lines are separated by '\n', as in IDE documents.
+     * Methods are also printed on the given executor, if any.
+     */
+    public static String getProGuardInstructions(CompilerBackend compilationService, ResultCache resultCache, String javaCode, String customClassPath, boolean hoistConstants, BooleanSupplier cancelled, PipelineStats stats, long maxChars, Executor printExecutor) {
+        GenerationEvent event = new GenerationEvent();
+        event.begin();
+        long startNanos = System.nanoTime();
+
+        Supplier<String> generator = () -> {
+            StringBuilder builder = new StringBuilder();
+            writeProGuardInstructions(compilationService, resultCache, javaCode, customClassPath, hoistConstants, cancelled, stats,
+                                      new CappedOutputSink(chunk -> appendWithLineFeeds(builder, chunk), maxChars), printExecutor);
+            return builder.toString();
+        };
+
+        String result;
+        String classPathVersion = compilationService.getClassPathVersion(customClassPath);
+        if (classPathVersion == null) {
+            // Changes to the class path would go unnoticed, so only the bytecode tier is safe.
+            stats.setSourceCacheHit(false);
+            result = generator.get();
+        } else {
+            // The backends generate different class files for the same source.
+            String sourceKey = ResultCache.sourceKey(javaCode, customClassPath, classPathVersion) + "/" + compilationService.getName() + outputModeSuffix(hoistConstants) + maxCharsSuffix(maxChars);
+            result = resultCache.getBySource(sourceKey);
+            stats.setSourceCacheHit(result != null);
+            if (result == null) {
+                // Identical requests that are running already are shared.
+                result = resultCache.getOrComputeBySource(sourceKey, generator, cancelled);
+            }
+        }
+
+        stats.stop(PipelineStats.TOTAL, startNanos);
+        event.end();
+        if (event.shouldCommit()) {
+            event.set(stats);
+            event.commit();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the syntax errors in the given source, or null if it is
+     * syntactically valid. This only parses the source, so it is much faster
+     * than generating the composer code, which also reports syntax errors.
+     * Parsing is aborted with a {@link CancellationException} as soon as the
+     * given supplier reports that it has been cancelled.
+     */
+    public static String getSyntaxErrors(CompilerBackend compilationService, String javaCode, String customClassPath, BooleanSupplier cancelled) {
         StringWriter stringWriter = new StringWriter();
-        PrintWriter printWriter = new PrintWriter(stringWriter);
+        try {
+            if (compilationService.parse(javaCode, new PrintWriter(stringWriter), customClassPath, cancelled)) {
+                return null;
+            }
+        } catch (IOException e) {
+            // Let the full compilation report the problem.
+            return null;
+        }
+        return stringWriter.toString();
+    }
 
-        SimpleJavaFileManager fileManager;
+    /**
+     * Compiles the given source and replays its code on real composers
+     * instead of printing it, returning a report that compares the rebuilt
+     * classes with the compiled ones.
+     */
+    public static String checkRoundTrip(CompilerBackend compilationService, String javaCode, String customClassPath, BooleanSupplier cancelled) {
+        StringWriter stringWriter = new StringWriter();
         try {
-            fileManager = compile(javaCode, printWriter, customClassPath);
+            return ComposerReplayer.check(compilationService.compile(javaCode, new PrintWriter(stringWriter), customClassPath, cancelled));
         } catch (IOException e) {
             return e.getMessage() + "\n\n" + stringWriter;
         }
+    }
 
-        ClassPool classPool = new ClassPool();
+    /**
+     * Writes the composer code for the given source to the given sink: first
+     * any compiler diagnostics, then the composer declarations, then one chunk
+     * per method. Only a chunk is in memory at a time; nothing is cached.
+     */
+    public static void writeProGuardInstructions(CompilerBackend compilationService, String javaCode, String customClassPath, boolean hoistConstants, BooleanSupplier cancelled, PipelineStats stats, OutputSink sink) {
+        writeProGuardInstructions(compilationService, null, javaCode, customClassPath, hoistConstants, cancelled, stats, sink, null);
+    }
 
-        // Parse all classes from the input jar and collect them in the class pool.
-        DataEntrySource source = dataEntryReader -> fileManager.getGeneratedOutputFiles().forEach(f -> {
-            try {
-                dataEntryReader.read(f);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        });
+    private static void writeProGuardInstructions(CompilerBackend compilationService, ResultCache resultCache, String javaCode, String customClassPath, boolean hoistConstants, BooleanSupplier cancelled, PipelineStats stats, OutputSink sink, Executor printExecutor) {
+        StringWriter stringWriter = new StringWriter();
+        PrintWriter printWriter = new PrintWriter(stringWriter);
 
+        List<ByteBuffer> classFiles;
+        long startNanos = System.nanoTime();
         try {
-            source.pumpDataEntries(
-                    new ClassReader(false, false, false, false, null,
-                    new ClassPoolFiller(classPool)));
+            classFiles = compilationService.compile(javaCode, printWriter, customClassPath, cancelled);
         } catch (IOException e) {
-            e.printStackTrace();
+            sink.write(e.getMessage() + "\n\n");
+            sink.write(stringWriter.getBuffer());
+            return;
+        } finally {
+            stats.stop(PipelineStats.COMPILE, startNanos);
+        }
+
+        // Warnings come before the instructions, like they always did.
+        printWriter.flush();
+        sink.write(stringWriter.getBuffer());
+
+        // Only comments or whitespace changed if the class files are the same.
+        MessageDigest digest = ResultCache.newDigest();
+        long classBytes = 0L;
+        for (ByteBuffer classFile : classFiles) {
+            classBytes += classFile.remaining();
+            digest.update(classFile.duplicate());
+        }
+        stats.setClassBytes(classBytes);
+
+        if (resultCache == null) {
+            checkCancelled(cancelled);
+            writeProGuardInstructions(classFiles, hoistConstants, cancelled, stats, sink, printExecutor);
+            return;
+        }
+
+        String bytecodeKey = ResultCache.toHex(digest.digest()) + outputModeSuffix(hoistConstants);
+        String instructions = resultCache.getByBytecode(bytecodeKey);
+        stats.setBytecodeCacheHit(instructions != null);
+        if (instructions != null) {
+            sink.write(instructions);
+            return;
         }
 
-        printWriter.println("CompactCodeAttributeComposer composer = new CompactCodeAttributeComposer(targetClass);");
-        printWriter.println("ConstantPoolEditor constantPoolEditor = new ConstantPoolEditor(targetClass);");
+        // Keep a copy of the instructions for the cache, unless they don't fit
+        // the sink or are too large to be worth copying.
+        checkCancelled(cancelled);
+        StringBuilder instructionsBuilder = new StringBuilder();
+        boolean[] cacheable = { true };
+        writeProGuardInstructions(classFiles, hoistConstants, cancelled, stats, new OutputSink() {
+            @Override
+            public void write(CharSequence chunk) {
+                if (cacheable[0]) {
+                    if (instructionsBuilder.length() + chunk.length() <= MAX_CACHED_CHARS) {
+                        instructionsBuilder.append(chunk);
+                    } else {
+                        cacheable[0] = false;
+                        instructionsBuilder.setLength(0);
+                        instructionsBuilder.trimToSize();
+                    }
+                }
+                sink.write(chunk);
+            }
+
+            @Override
+            public boolean isFull() {
+                return sink.isFull();
+            }
+        }, printExecutor);
+        if (cacheable[0] && !sink.isFull()) {
+            resultCache.putByBytecode(bytecodeKey, instructionsBuilder.toString());
+        }
+    }
 
-        BranchTargetFinder targetFinder = new BranchTargetFinder();
-        classPool.classAccept(CLASS_NAME, new AllMethodVisitor(
-                new MemberNameFilter(METHOD_NAME,
+    /**
+     * Appends the given chunk to the given builder, dropping the carriage
+     * returns of the line separators, so the text doesn't need to be
+     * converted again before it goes into a document.
+     */
+    private static void appendWithLineFeeds(StringBuilder builder, CharSequence chunk) {
+        int start = 0;
+        for (int index = 0; index < chunk.length(); index++) {
+            if (chunk.charAt(index) == '\r') {
+                builder.append(chunk, start, index);
+                start = index + 1;
+                // A lone carriage return still separates lines.
+                if (start == chunk.length() || chunk.charAt(start) != '\n') {
+                    builder.append('\n');
+                }
+            }
+        }
+        builder.append(chunk, start, chunk.length());
+    }
+
+    private static void writeProGuardInstructions(List<ByteBuffer> classFiles, boolean hoistConstants, BooleanSupplier cancelled, PipelineStats stats, OutputSink sink, Executor printExecutor) {
+        long startNanos = System.nanoTime();
+
+        // Parse only the parts of the generated classes that get printed.
+        List<Clazz> classes = new ArrayList<>();
+        for (ByteBuffer classFile : classFiles) {
+            classes.add(SelectiveClassReader.read(classFile));
+        }
+        stats.stop(PipelineStats.PARSE, startNanos);
+
+        checkCancelled(cancelled);
+
+        // The snippet's class comes first, the classes it contains follow.
+        classes.sort(Comparator.comparing((Clazz clazz) -> !clazz.getName().equals(CLASS_NAME))
+                               .thenComparing(Clazz::getName));
+
+        // The snippet's method comes first, helper methods follow.
+        List<MethodCode> methodCodes = collectMethodCodes(classes);
+        methodCodes.sort(Comparator.comparing(methodCode -> !methodCode.clazz.getName().equals(CLASS_NAME) ||
+                                                            !methodCode.method.getName(methodCode.clazz).equals(METHOD_NAME)));
+
+        StringBuilder builder = new StringBuilder();
+        appendComposerDeclarations(builder);
+        sink.write(builder);
+        writeMethodCodes(methodCodes, hoistConstants, cancelled, stats, sink, printExecutor);
+    }
+
+    /**
+     * Appends the declarations of the composer and constant pool editor that
+     * the printed method code uses.
+     */
+    public static void appendComposerDeclarations(StringBuilder builder) {
+        builder.append("CompactCodeAttributeComposer composer = new CompactCodeAttributeComposer(targetClass);").append(NEW_LINE);
+        builder.append("ConstantPoolEditor constantPoolEditor = new ConstantPoolEditor(targetClass);").append(NEW_LINE);
+    }
+
+    /**
+     * Returns all methods with code of the given classes, in class order and
+     * then in the order in which they are defined. All methods of a class share
+     * a cache for their constant arguments.
+     */
+    public static List<MethodCode> collectMethodCodes(List<Clazz> classes) {
+        List<MethodCode> methodCodes = new ArrayList<>();
+        for (Clazz clazz : classes) {
+            ConstantArgumentCache constantArgumentCache = new ConstantArgumentCache();
+            clazz.methodsAccept(
                 new AllAttributeVisitor(
                 new AttributeNameFilter(Attribute.CODE,
-                new MultiAttributeVisitor(targetFinder,
                 new AttributeVisitor() {
-                      @Override
-                      public void visitCodeAttribute(Clazz clazz, Method method, CodeAttribute codeAttribute) {
-                          Map<Integer, ProcessingItem> offsetsToProcessingItems = new HashMap<>();
-                          ExceptionLabelManager exceptionLabelManager = new ExceptionLabelManager();
-                          LabelPrinter labelPrinter = new LabelPrinter(printWriter, targetFinder);
-                          MethodRefPrinter methodRefPrinter = new MethodRefPrinter(printWriter);
-
-                          codeAttribute.instructionsAccept(clazz, method, labelPrinter);
-                          codeAttribute.instructionsAccept(clazz, method, methodRefPrinter);
-
-                          // Collect instructions as ProcessingItems to prepare for exception handling.
-                          codeAttribute.instructionsAccept(clazz, method, new InstructionVisitor() {
-                              @Override
-                              public void visitAnyInstruction(Clazz clazz, Method method, CodeAttribute codeAttribute, int offset, Instruction instruction) {
-                                  offsetsToProcessingItems.put(offset, new ProcessingItem(instruction, offset));
-                              }
-                          });
-
-                          List<ProcessingItem> thingsToProcess = offsetsToProcessingItems.entrySet()
-                                  .stream()
-                                  .sorted(Comparator.comparingInt(Map.Entry::getKey))
-                                  .map(Map.Entry::getValue).collect(Collectors.toList());
-
-                          // Add exception info where it needs to go.
-                          codeAttribute.exceptionsAccept(clazz, method, (clazz1, method1, codeAttribute1, exceptionInfo) -> {
-
-                              String exceptionClassName = getReferencedClassName(clazz1, exceptionInfo.u2catchType);
-                              int tryStartOffset = exceptionInfo.u2startPC;
-                              int tryEndOffset = exceptionInfo.u2endPC;
-                              int exceptionHandlerOffset = exceptionInfo.u2handlerPC;
-
-                              // Add labels.
-                              String tryStartLabel = exceptionLabelManager.getFreshTryStartLabel();
-                              String tryEndLabel = exceptionLabelManager.getFreshTryEndLabel();
-                              String handlerLabel = exceptionLabelManager.getFreshHandlerLabel();
-
-                              insertLabelAt(tryStartLabel, tryStartOffset, thingsToProcess, offsetsToProcessingItems);
-                              insertLabelAt(tryEndLabel, tryEndOffset, thingsToProcess, offsetsToProcessingItems);
-                              insertLabelAt(handlerLabel, exceptionHandlerOffset, thingsToProcess, offsetsToProcessingItems);
-
-                              // Add the catch pseudo-instruction to the end of our processing list.
-                              thingsToProcess.add(new ProcessingItem(new CatchSpec(
-                                  tryStartLabel,
-                                  tryEndLabel,
-                                  handlerLabel,
-                                  exceptionClassName
-                              )));
-                          });
-
-                          // Print more labels.
-                          exceptionLabelManager.getLabelCreationStatements().forEach(printWriter::println);
-                          printWriter.println("composer.beginCodeFragment(0xFFFF)");
-
-                          // Iterate over the entire ProcessingItem list, delegating where necessary.
-                          InstructionPrinter instructionPrinter = new InstructionPrinter(printWriter, targetFinder, labelPrinter);
-                          thingsToProcess.forEach(processingItem -> {
-                              switch (processingItem.type) {
-                                  case INSTRUCTION:
-                                      processingItem.instruction.accept(clazz, method, codeAttribute, processingItem.instructionOffset, instructionPrinter);
-                                      break;
-                                  case LABEL:
-                                      printWriter.printf("        .label(%s)%n", processingItem.labelName);
-                                      break;
-                                  case CATCH:
-                                      CatchSpec spec = processingItem.catchSpec;
-                                      printWriter.printf("        .catch_(%s, %s, %s, \"%s\", null)%n",
-                                                         spec.tryStartLabel,
-                                                         spec.tryEndLabel,
-                                                         spec.handlerLabel,
-                                                         spec.exceptionClassName);
-                              }
-                          });
-                          printWriter.println("        .endCodeFragment()");
-                      }
-                }))))));
-
-        return stringWriter.toString().strip() + ";" + System.lineSeparator();
+                    @Override
+                    public void visitCodeAttribute(Clazz clazz, Method method, CodeAttribute codeAttribute) {
+                        methodCodes.add(new MethodCode(clazz, method, codeAttribute, constantArgumentCache));
+                    }
+                })));
+        }
+        return methodCodes;
     }
 
-    private static void insertLabelAt(String labelName, int offset, List<ProcessingItem> processingItems, Map<Integer, ProcessingItem> offsetsToProcessingItems)
-    {
-        ProcessingItem itemToInsertBefore = offsetsToProcessingItems.get(offset);
-        int itemIdx = processingItems.indexOf(itemToInsertBefore);
-        processingItems.add(itemIdx, new ProcessingItem(labelName));
+    /**
+     * Writes the composer code of the given methods to the given sink. The
+     * methods are printed independently, by the calling thread and, if
+     * specified, by a few helpers on the given executor, and written in the
+     * given order as soon as they are ready. Methods aren't printed anymore
+     * once the sink is full.
+     */
+    public static void writeMethodCodes(List<MethodCode> methodCodes, boolean hoistConstants, BooleanSupplier cancelled, PipelineStats stats, OutputSink sink, Executor printExecutor) {
+        MethodCodeWriter writer = new MethodCodeWriter(methodCodes, hoistConstants, cancelled, stats, sink);
+
+        if (printExecutor != null) {
+            int helperCount = Math.min(methodCodes.size(), PRINT_PARALLELISM) - 1;
+            for (int helper = 0; helper < helperCount; helper++) {
+                printExecutor.execute(writer::printMethodCodes);
+            }
+        }
+
+        // The calling thread prints too, so it never waits for work that
+        // hasn't started, and it writes the chunks in order.
+        writer.printAndWriteMethodCodes();
+    }
+
+    /**
+     * Prints the composer code of a single method.
+     */
+    public static String printMethodCode(MethodCode methodCode, boolean hoistConstants, BooleanSupplier cancelled) {
+        return printMethodCode(methodCode, hoistConstants, cancelled, new PipelineStats());
+    }
+
+    /**
+     * Prints the composer code of a single method, adding its times and
+     * counts to the given statistics.
+     */
+    public static String printMethodCode(MethodCode methodCode, boolean hoistConstants, BooleanSupplier cancelled, PipelineStats stats) {
+        StringBuilder builder = new StringBuilder();
+        printMethodCode(methodCode, hoistConstants, cancelled, stats, builder);
+        return builder.toString();
+    }
+
+    /**
+     * Appends the composer code of a single method to the given builder, so
+     * the builder can be reused for the next method.
+     */
+    public static void printMethodCode(MethodCode methodCode, boolean hoistConstants, BooleanSupplier cancelled, PipelineStats stats, StringBuilder builder) {
+        long startNanos = System.nanoTime();
+        Clazz clazz = methodCode.clazz;
+        Method method = methodCode.method;
+        CodeAttribute codeAttribute = methodCode.codeAttribute;
+        ConstantArgumentCache constantArgumentCache = methodCode.constantArgumentCache;
+
+        builder.append(NEW_LINE)
+               .append("// ").append(clazz.getName())
+               .append('.').append(method.getName(clazz)).append(method.getDescriptor(clazz))
+               .append(NEW_LINE);
+
+        // Decode all instructions once; everything below works from this table.
+        InstructionTable instructionTable = new InstructionTable();
+        instructionTable.build(clazz, method, codeAttribute);
+
+        LabelPrinter labelPrinter = new LabelPrinter(builder, instructionTable);
+        ExceptionLabelManager exceptionLabelManager = new ExceptionLabelManager(labelPrinter);
+
+        // Label the try blocks and handlers, sharing labels at the same offsets.
+        codeAttribute.exceptionsAccept(clazz, method, (clazz1, method1, codeAttribute1, exceptionInfo) ->
+            exceptionLabelManager.addCatch(exceptionInfo.u2startPC,
+                                           exceptionInfo.u2endPC,
+                                           exceptionInfo.u2handlerPC,
+                                           exceptionInfo.u2catchType == 0 ? null :
+                                               getReferencedClassName(clazz1, exceptionInfo.u2catchType)));
+        stats.stop(PipelineStats.ANALYZE, startNanos);
+        startNanos = System.nanoTime();
+
+        // Scope the hoisted locals, which are named after their constant index, to this method.
+        if (hoistConstants) {
+            builder.append('{').append(NEW_LINE);
+        }
+        labelPrinter.printLabelCreationStatements();
+        if (hoistConstants) {
+            instructionTable.instructionsAccept(clazz, method, codeAttribute, new HoistedConstantPrinter(builder, constantArgumentCache));
+        }
+        builder.append("composer.beginCodeFragment(0xFFFF)").append(NEW_LINE);
+
+        // Print the instructions, each preceded by its label.
+        InstructionPrinter instructionPrinter = new InstructionPrinter(builder, labelPrinter, constantArgumentCache, hoistConstants);
+        for (int index = 0; index < instructionTable.size(); index++) {
+            checkCancelled(cancelled);
+            int offset = instructionTable.offset(index);
+            labelPrinter.printLabel(offset);
+            instructionTable.instruction(index).accept(clazz, method, codeAttribute, offset, instructionPrinter);
+        }
+        labelPrinter.printLabel(codeAttribute.u4codeLength);
+        exceptionLabelManager.printCatches(builder);
+        builder.append("        .endCodeFragment();").append(NEW_LINE);
+        if (hoistConstants) {
+            builder.append('}').append(NEW_LINE);
+        }
+        stats.stop(PipelineStats.PRINT, startNanos);
+        stats.addInstructions(instructionTable.size());
+        stats.addLabels(labelPrinter.getLabelCount());
+        stats.addExceptions(exceptionLabelManager.getCatchCount());
+    }
+
+    private static String outputModeSuffix(boolean hoistConstants) {
+        return hoistConstants ? ":hoisted" : "";
+    }
+
+    private static String maxCharsSuffix(long maxChars) {
+        return maxChars == Long.MAX_VALUE ? "" : ":max" + maxChars;
+    }
+
+    static void checkCancelled(BooleanSupplier cancelled) {
+        if (cancelled.getAsBoolean()) {
+            throw new CancellationException();
+        }
     }
 
     private static String getReferencedClassName(Clazz clazz, int constantPoolIdx)
@@ -171,58 +426,24 @@ public class CodeUtil {
         return nameContainer.get(0);
     }
 
-    @NotNull
-    public static SimpleJavaFileManager compile(String javaCode, PrintWriter printWriter, String customClassPath) throws IOException {
-        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
-        if (compiler == null)
-        {
-            try
-            {
-                Class<?> javacTool = Class.forName("com.sun.tools.javac.api.JavacTool");
-                java.lang.reflect.Method create = javacTool.getMethod("create");
-                compiler = (JavaCompiler) create.invoke(null);
-            } catch (Exception e)
-            {
-                throw new RuntimeException(e);
-            }
+    /**
+     * A method with code, along with the constant cache of its class.
+     */
+    public static class MethodCode {
+        public final Clazz clazz;
+        public final Method method;
+        public final CodeAttribute codeAttribute;
+        public final ConstantArgumentCache constantArgumentCache;
+
+        public MethodCode(Clazz clazz, Method method, CodeAttribute codeAttribute, ConstantArgumentCache constantArgumentCache) {
+            this.clazz = clazz;
+            this.method = method;
+            this.codeAttribute = codeAttribute;
+            this.constantArgumentCache = constantArgumentCache;
         }
-
-        JavaFileObject compilationUnit = new StringJavaFileObject(CLASS_NAME, javaCode);
-
-        DiagnosticListener<JavaFileObject> listener = diagnostic -> {
-            printWriter.print(diagnostic.getKind().toString().toLowerCase() + ": ");
-            printWriter.print(diagnostic.getMessage(Locale.ENGLISH));
-            printWriter.println(" at line " + (diagnostic.getLineNumber()) + ".");
-        };
-
-        SimpleJavaFileManager fileManager = new SimpleJavaFileManager(compiler.getStandardFileManager(listener, Locale.ENGLISH, StandardCharsets.UTF_8));
-
-        List<String> compilerArguments = new ArrayList<>(List.of("--release", "8", "-cp"));
-        if (customClassPath != null && !"".equals(customClassPath))
-        {
-            compilerArguments.add(System.getProperty("java.class.path") + ":" + customClassPath);
-        }
-        else
-        {
-            compilerArguments.add(System.getProperty("java.class.path"));
-        }
-
-        JavaCompiler.CompilationTask compilationTask = compiler.getTask(
-                null,
-                fileManager,
-                listener,
-                compilerArguments,
-                null,
-                Collections.singletonList(compilationUnit));
-
-        if (!compilationTask.call()) {
-            throw new IOException("Compilation failed.");
-        }
-
-        return fileManager;
     }
 
-    private static class StringJavaFileObject extends SimpleJavaFileObject {
+    static class StringJavaFileObject extends SimpleJavaFileObject {
         private final String code;
 
         public StringJavaFileObject(String name, String code) {
@@ -236,14 +457,14 @@ public class CodeUtil {
         }
     }
 
-    private static class ClassJavaFileObject extends SimpleJavaFileObject implements DataEntry {
-        private final ByteArrayOutputStream outputStream;
+    static class ClassJavaFileObject extends SimpleJavaFileObject {
+        private final ClassOutputStream outputStream;
         private final String className;
 
         protected ClassJavaFileObject(String className, Kind kind) {
             super(URI.create("mem:///" + className.replace('.', '/') + kind.extension), kind);
             this.className = className;
-            outputStream = new ByteArrayOutputStream();
+            outputStream = new ClassOutputStream();
         }
 
         @Override
@@ -251,51 +472,186 @@ public class CodeUtil {
             return outputStream;
         }
 
-        public byte[] getBytes() {
-            return outputStream.toByteArray();
+        /**
+         * Returns a read-only view of the class file, without copying it.
+         */
+        public ByteBuffer getByteBuffer() {
+            return outputStream.toByteBuffer();
         }
 
         public String getClassName() {
             return className;
         }
+    }
 
-        @Override
-        public String getOriginalName() {
-            return this.getClassName();
+    /**
+     * Collects a class file that javac writes, exposing it without copies.
+     */
+    private static class ClassOutputStream extends ByteArrayOutputStream {
+        public synchronized ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count).asReadOnlyBuffer();
         }
+    }
 
-        @Override
-        public long getSize() {
-            return this.getBytes().length;
+    /**
+     * Prints methods on any number of threads, which claim the next method
+     * until all are claimed, and writes them in order from the calling thread.
+     */
+    private static class MethodCodeWriter {
+        private final List<MethodCode> methodCodes;
+        private final boolean hoistConstants;
+        private final BooleanSupplier cancelled;
+        private final PipelineStats stats;
+        private final OutputSink sink;
+
+        private final AtomicInteger nextIndex = new AtomicInteger();
+        private final String[] chunks;
+        private Throwable failure;
+        private int writtenCount;
+
+        public MethodCodeWriter(List<MethodCode> methodCodes, boolean hoistConstants, BooleanSupplier cancelled, PipelineStats stats, OutputSink sink) {
+            this.methodCodes = methodCodes;
+            this.hoistConstants = hoistConstants;
+            this.cancelled = cancelled;
+            this.stats = stats;
+            this.sink = sink;
+            this.chunks = new String[methodCodes.size()];
         }
 
-        @Override
-        public boolean isDirectory() {
-            return false;
+        /**
+         * Prints methods until all are claimed. Helpers that only start once
+         * everything is claimed finish right away.
+         */
+        public void printMethodCodes() {
+            StringBuilder builder = new StringBuilder();
+            int index;
+            while ((index = nextIndex.getAndIncrement()) < chunks.length) {
+                if (printMethodCode(index, builder)) {
+                    putChunk(index, builder.toString());
+                }
+            }
         }
 
-        @Override
-        public InputStream getInputStream() {
-            return new ByteArrayInputStream(this.getBytes());
+        /**
+         * Prints methods until all are claimed, writing the ones that are
+         * ready in between, and then writes the rest as they become ready.
+         */
+        public void printAndWriteMethodCodes() {
+            StringBuilder builder = new StringBuilder();
+            int index;
+            while ((index = nextIndex.getAndIncrement()) < chunks.length) {
+                // Write the chunks that are ready, so this one may be next.
+                writeChunks(false);
+                if (index == writtenCount) {
+                    // The next chunk goes to the sink straight from the builder.
+                    if (printMethodCode(index, builder)) {
+                        sink.write(builder);
+                        writtenCount++;
+                    }
+                } else if (printMethodCode(index, builder)) {
+                    putChunk(index, builder.toString());
+                }
+            }
+            writeChunks(true);
         }
 
-        @Override
-        public void closeInputStream() {}
+        /**
+         * Prints the given method into the given builder, replacing its
+         * contents.
+         * @return true if the method was printed, false if the printing failed.
+         */
+        private boolean printMethodCode(int index, StringBuilder builder) {
+            builder.setLength(0);
+            try {
+                if (!sink.isFull()) {
+                    CodeUtil.printMethodCode(methodCodes.get(index), hoistConstants, cancelled, stats, builder);
+                }
+                return true;
+            } catch (Throwable e) {
+                // Stop the other threads from claiming more methods, and
+                // wake up the writer, which rethrows the failure, even if
+                // it is an Error.
+                nextIndex.set(chunks.length);
+                synchronized (this) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                    notifyAll();
+                }
+                return false;
+            }
+        }
 
-        @Override
-        public DataEntry getParent() {
-            return null;
+        private synchronized void putChunk(int index, String chunk) {
+            chunks[index] = chunk;
+            notifyAll();
+        }
+
+        private void writeChunks(boolean wait) {
+            while (writtenCount < chunks.length) {
+                String chunk;
+                synchronized (this) {
+                    while (wait && chunks[writtenCount] == null && failure == null) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new CancellationException();
+                        }
+                    }
+                    if (failure instanceof RuntimeException) {
+                        throw (RuntimeException)failure;
+                    }
+                    if (failure instanceof Error) {
+                        throw (Error)failure;
+                    }
+                    if (failure != null) {
+                        throw new IllegalStateException(failure);
+                    }
+                    chunk = chunks[writtenCount];
+                    if (chunk == null) {
+                        return;
+                    }
+                    chunks[writtenCount++] = null;
+                }
+                sink.write(chunk);
+            }
         }
     }
 
-    public static class SimpleJavaFileManager extends ForwardingJavaFileManager {
+    public static class SimpleJavaFileManager extends ForwardingJavaFileManager<JavaFileManager> {
         private final List<ClassJavaFileObject> outputFiles;
+        private final ClassPathIndex classPathIndex;
 
-        protected SimpleJavaFileManager(JavaFileManager fileManager) {
+        protected SimpleJavaFileManager(JavaFileManager fileManager, ClassPathIndex classPathIndex) {
             super(fileManager);
+            this.classPathIndex = classPathIndex;
             outputFiles = new ArrayList<>();
         }
 
+        @Override
+        public Iterable<JavaFileObject> list(Location location, String packageName, Set<JavaFileObject.Kind> kinds, boolean recurse) throws IOException {
+            // Serve package listings of the class path from the index, if any.
+            if (classPathIndex != null && location == StandardLocation.CLASS_PATH && !recurse) {
+                return classPathIndex.list(packageName, kinds);
+            }
+            return super.list(location, packageName, kinds, recurse);
+        }
+
+        @Override
+        public String inferBinaryName(Location location, JavaFileObject file) {
+            String binaryName = ClassPathIndex.inferBinaryName(file);
+            return binaryName != null ? binaryName : super.inferBinaryName(location, file);
+        }
+
+        @Override
+        public boolean isSameFile(FileObject a, FileObject b) {
+            if (ClassPathIndex.isIndexed(a) || ClassPathIndex.isIndexed(b)) {
+                return a.toUri().equals(b.toUri());
+            }
+            return super.isSameFile(a, b);
+        }
+
         @Override
         public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind, FileObject sibling) {
             ClassJavaFileObject file = new ClassJavaFileObject(className, kind);
@@ -0,0 +1,308 @@
+package com.guardsquare.bytecodebuilder.backend;
+
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+import org.jetbrains.annotations.NotNull;
+
+import javax.tools.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.BooleanSupplier;
+
+import static com.guardsquare.bytecodebuilder.BytecodeBuilderToolWindow.CLASS_NAME;
+
+/**
+ * Long-lived javac front end, the default {@link CompilerBackend}.
+ *
+ * The compiler and its standard file manager are kept alive between
+ * compilations, so the JDK and the classpath archives are opened and listed
+ * only once instead of on every edit. The file manager is only recreated when
+ * the custom classpath changes, and is closed together with this service.
+ * Package listings of the class path are served from a {@link ClassPathIndex}.
+ *
+ * Debug information is not generated: it is never printed, and leaving it
+ * out makes the class files independent of comments and whitespace.
+ *
+ * Source code can also just be parsed, which reports syntax errors in a
+ * fraction of the time of a full compilation.
+ */
+public class CompilationService implements CompilerBackend
+{
+    private static final System.Logger LOG     = System.getLogger(CompilationService.class.getName());
+    private static final List<String>  OPTIONS = List.of("--release", "8", "-g:none");
+
+    private final JavaCompiler      compiler = findCompiler();
+    private StandardJavaFileManager standardFileManager;
+    private ClassPathIndex          classPathIndex;
+    private String                  classPath;
+
+
+    @Override
+    public String getName()
+    {
+        return JAVAC;
+    }
+
+
+    @Override
+    @NotNull
+    public synchronized List<ByteBuffer> compile(String javaCode, PrintWriter printWriter, String customClassPath, BooleanSupplier cancelled) throws IOException
+    {
+        JavaFileObject compilationUnit = new CodeUtil.StringJavaFileObject(CLASS_NAME, javaCode);
+
+        DiagnosticListener<JavaFileObject> listener = diagnostic -> {
+            printWriter.print(diagnostic.getKind().toString().toLowerCase() + ": ");
+            printWriter.print(diagnostic.getMessage(Locale.ENGLISH));
+            printWriter.println(" at line " + (diagnostic.getLineNumber()) + ".");
+        };
+
+        CodeUtil.SimpleJavaFileManager fileManager = new CodeUtil.SimpleJavaFileManager(getStandardFileManager(customClassPath), classPathIndex);
+
+        JavaCompiler.CompilationTask compilationTask = compiler.getTask(
+                null,
+                fileManager,
+                listener,
+                OPTIONS,
+                null,
+                Collections.singletonList(compilationUnit));
+
+        // Let javac itself notice when the compilation has become stale.
+        if (compilationTask instanceof JavacTask)
+        {
+            ((JavacTask)compilationTask).addTaskListener(new CancellingTaskListener(cancelled));
+        }
+
+        boolean success;
+        try
+        {
+            success = compilationTask.call();
+        }
+        catch (RuntimeException e)
+        {
+            // javac wraps exceptions thrown by listeners.
+            CodeUtil.checkCancelled(cancelled);
+            throw e;
+        }
+
+        if (!success) {
+            CodeUtil.checkCancelled(cancelled);
+            throw new IOException("Compilation failed.");
+        }
+
+        List<ByteBuffer> classFiles = new ArrayList<>();
+        for (CodeUtil.ClassJavaFileObject file : fileManager.getGeneratedOutputFiles())
+        {
+            classFiles.add(file.getByteBuffer());
+        }
+        return classFiles;
+    }
+
+
+    @Override
+    public synchronized boolean parse(String javaCode, PrintWriter printWriter, String customClassPath, BooleanSupplier cancelled) throws IOException
+    {
+        JavaFileObject compilationUnit = new CodeUtil.StringJavaFileObject(CLASS_NAME, javaCode);
+
+        boolean[] valid = { true };
+        DiagnosticListener<JavaFileObject> listener = diagnostic -> {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR)
+            {
+                valid[0] = false;
+                printWriter.print("error: ");
+                printWriter.print(diagnostic.getMessage(Locale.ENGLISH));
+                printWriter.println(" at line " + (diagnostic.getLineNumber()) + ".");
+            }
+        };
+
+        JavacTask parseTask = (JavacTask)compiler.getTask(
+                null,
+                getStandardFileManager(customClassPath),
+                listener,
+                OPTIONS,
+                null,
+                Collections.singletonList(compilationUnit));
+
+        parseTask.addTaskListener(new CancellingTaskListener(cancelled));
+
+        try
+        {
+            parseTask.parse();
+        }
+        catch (RuntimeException e)
+        {
+            // javac wraps exceptions thrown by listeners.
+            CodeUtil.checkCancelled(cancelled);
+            throw e;
+        }
+
+        return valid[0];
+    }
+
+
+    @Override
+    public synchronized String getClassPathVersion(String customClassPath)
+    {
+        try
+        {
+            getStandardFileManager(customClassPath);
+        }
+        catch (IOException e)
+        {
+            LOG.log(System.Logger.Level.WARNING, "Can't set up the class path [" + customClassPath + "]", e);
+        }
+
+        // Without an index, changes can't be noticed.
+        return classPathIndex != null ?
+            classPathIndex.getDirectoryVersion() :
+            null;
+    }
+
+
+    /**
+     * Sets up the file manager and the class path index for the given
+     * custom classpath ahead of the next compilation.
+     */
+    @Override
+    public synchronized void prepare(String customClassPath) throws IOException
+    {
+        getStandardFileManager(customClassPath);
+    }
+
+
+    @Override
+    public synchronized void close()
+    {
+        closeStandardFileManager();
+    }
+
+
+    // Small utility methods.
+
+    /**
+     * Returns the shared file manager, recreating it if the given custom
+     * classpath differs from the one it was set up with.
+     */
+    private StandardJavaFileManager getStandardFileManager(String customClassPath) throws IOException
+    {
+        String newClassPath = System.getProperty("java.class.path");
+        if (customClassPath != null && !"".equals(customClassPath))
+        {
+            newClassPath += File.pathSeparator + customClassPath;
+        }
+
+        if (standardFileManager == null || !newClassPath.equals(classPath))
+        {
+            closeStandardFileManager();
+
+            StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, Locale.ENGLISH, StandardCharsets.UTF_8);
+            fileManager.setLocation(StandardLocation.CLASS_PATH, toFiles(newClassPath));
+
+            try
+            {
+                classPathIndex = new ClassPathIndex(newClassPath);
+            }
+            catch (IOException e)
+            {
+                // Fall back on the file manager's own listings.
+                LOG.log(System.Logger.Level.WARNING, "Can't index the class path [" + newClassPath + "]", e);
+            }
+
+            standardFileManager = fileManager;
+            classPath           = newClassPath;
+        }
+
+        return standardFileManager;
+    }
+
+
+    private void closeStandardFileManager()
+    {
+        if (standardFileManager != null)
+        {
+            try
+            {
+                standardFileManager.close();
+                if (classPathIndex != null)
+                {
+                    classPathIndex.close();
+                }
+            }
+            catch (IOException e)
+            {
+                LOG.log(System.Logger.Level.WARNING, "Can't close the file manager of the class path [" + classPath + "]", e);
+            }
+            standardFileManager = null;
+            classPathIndex      = null;
+            classPath           = null;
+        }
+    }
+
+
+    private static List<File> toFiles(String classPath)
+    {
+        List<File> files = new ArrayList<>();
+        for (String entry : classPath.split(File.pathSeparator))
+        {
+            if (!entry.isEmpty())
+            {
+                files.add(new File(entry));
+            }
+        }
+        return files;
+    }
+
+
+    private static JavaCompiler findCompiler()
+    {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null)
+        {
+            try
+            {
+                Class<?> javacTool = Class.forName("com.sun.tools.javac.api.JavacTool");
+                java.lang.reflect.Method create = javacTool.getMethod("create");
+                compiler = (JavaCompiler) create.invoke(null);
+            } catch (Exception e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+        return compiler;
+    }
+
+
+    // Inner classes.
+
+    /**
+     * Aborts the compilation between javac's phases once it is cancelled.
+     */
+    private static class CancellingTaskListener implements TaskListener
+    {
+        private final BooleanSupplier cancelled;
+
+
+        public CancellingTaskListener(BooleanSupplier cancelled)
+        {
+            this.cancelled = cancelled;
+        }
+
+
+        @Override
+        public void started(TaskEvent e)
+        {
+            CodeUtil.checkCancelled(cancelled);
+        }
+
+
+        @Override
+        public void finished(TaskEvent e)
+        {
+            CodeUtil.checkCancelled(cancelled);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.guardsquare.bytecodebuilder.backend;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A long-lived compiler that turns the source code of the snippet into class
+ * files, keeping whatever it needs for the class path warm between
+ * compilations.
+ *
+ * The compiler prints its diagnostics as "kind: message at line N.", so the
+ * output looks the same whichever backend is used.
+ */
+public interface CompilerBackend extends Closeable
+{
+    String JAVAC   = "javac";
+    String ECLIPSE = "ecj";
+
+
+    /**
+     * Returns a new backend with the given name, {@link #JAVAC} or
+     * {@link #ECLIPSE}.
+     */
+    static CompilerBackend create(String name)
+    {
+        switch (name)
+        {
+            case JAVAC:   return new CompilationService();
+            case ECLIPSE: return new EclipseCompilationService();
+            default:      throw new IllegalArgumentException("Unknown compiler backend [" + name + "]");
+        }
+    }
+
+
+    /**
+     * Returns the name of this backend.
+     */
+    String getName();
+
+
+    /**
+     * Compiles the given source code and prints its diagnostics. The
+     * compilation is aborted with a CancellationException as soon as the
+     * given supplier reports that it has been cancelled.
+     * @return the contents of the generated class files.
+     */
+    List<ByteBuffer> compile(String javaCode, PrintWriter printWriter, String customClassPath, BooleanSupplier cancelled) throws IOException;
+
+
+    /**
+     * Parses the given source code, without attributing it against the class
+     * path or generating code, and prints any syntax errors. Parsing is
+     * aborted with a CancellationException once the given supplier reports
+     * that it has been cancelled.
+     * @return whether the source code is syntactically valid.
+     */
+    boolean parse(String javaCode, PrintWriter printWriter, String customClassPath, BooleanSupplier cancelled) throws IOException;
+
+
+    /**
+     * Returns a version of the class path with the given custom classpath,
+     * which changes whenever the files in its directories change, or null if
+     * such changes can't be noticed. Results for the same source can then
+     * never be reused.
+     */
+    String getClassPathVersion(String customClassPath);
+
+
+    /**
+     * Sets up the class path for the given custom classpath ahead of the
+     * next compilation.
+     */
+    void prepare(String customClassPath) throws IOException;
+
+
+    @Override
+    void close();
+}
@@ -0,0 +1,752 @@
+package com.guardsquare.bytecodebuilder.backend;
+
+import proguard.classfile.Clazz;
+import proguard.classfile.Method;
+import proguard.classfile.ProgramClass;
+import proguard.classfile.ProgramMethod;
+import proguard.classfile.attribute.Attribute;
+import proguard.classfile.attribute.CodeAttribute;
+import proguard.classfile.attribute.ExceptionInfo;
+import proguard.classfile.editor.AttributesEditor;
+import proguard.classfile.editor.ClassBuilder;
+import proguard.classfile.editor.CompactCodeAttributeComposer;
+import proguard.classfile.editor.CompactCodeAttributeComposer.Label;
+import proguard.classfile.editor.ConstantAdder;
+import proguard.classfile.editor.ConstantPoolEditor;
+import proguard.classfile.instruction.*;
+import proguard.classfile.instruction.visitor.InstructionVisitor;
+import proguard.classfile.io.ProgramClassWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Replays the code of compiled classes on a real
+ * {@link CompactCodeAttributeComposer}, instead of printing the composer code.
+ *
+ * The replay walks the same structure as the printers: the instructions of
+ * the {@link InstructionTable}, one label per branch target, try block
+ * boundary and handler, and the exception table as catches. The
+ * instructions go through the same {@link InstructionEmitter} as the
+ * printed code, and each composer call is made with the name and the values
+ * of the printed arguments, so a missing or misnamed composer method, or an
+ * argument that the printed code gets wrong, shows up here.
+ *
+ * Instructions that the printed code can't express are listed in the
+ * report, and are copied as they are, so the rest of the code can still be
+ * compared. Comparing the rebuilt classes with the originals gives a
+ * round-trip check of the generated code, without compiling any generated
+ * source.
+ */
+public class ComposerReplayer
+{
+    // The composer methods, by the signatures of the calls.
+    private static final Map<String, Optional<java.lang.reflect.Method>> COMPOSER_METHODS = new ConcurrentHashMap<>();
+
+
+    /**
+     * Returns a round-trip report for the given class files: each class is
+     * rebuilt, written, read back and compared with the original, and any
+     * instructions that the printed code can't express are listed.
+     */
+    public static String check(List<ByteBuffer> classFiles)
+    {
+        StringBuilder report = new StringBuilder();
+        for (ByteBuffer classFile : classFiles)
+        {
+            ProgramClass originalClass = SelectiveClassReader.read(classFile);
+            report.append(originalClass.getName()).append(": ");
+            try
+            {
+                List<String> problems     = new ArrayList<>();
+                ProgramClass rebuiltClass = replayClass(originalClass, problems);
+                byte[]       bytes        = toByteArray(rebuiltClass);
+                List<String> differences  = compare(originalClass, SelectiveClassReader.read(ByteBuffer.wrap(bytes)));
+
+                if (differences.isEmpty())
+                {
+                    report.append("identical code, ").append(bytes.length).append(" bytes.");
+                }
+                else
+                {
+                    report.append(differences.size()).append(" difference(s):");
+                    differences.forEach(difference -> report.append(CodeUtil.NEW_LINE).append("    ").append(difference));
+                }
+
+                if (!problems.isEmpty())
+                {
+                    report.append(CodeUtil.NEW_LINE)
+                          .append("  ").append(problems.size()).append(" instruction(s) that the printed code can't express:");
+                    problems.forEach(problem -> report.append(CodeUtil.NEW_LINE).append("    ").append(problem));
+                }
+            }
+            catch (RuntimeException e)
+            {
+                report.append("replay failed: ").append(e.getMessage());
+            }
+            report.append(CodeUtil.NEW_LINE);
+        }
+        return report.toString();
+    }
+
+
+    /**
+     * Returns a new class with the same name, super class, interfaces and
+     * methods as the given class, with code that is replayed on a composer.
+     * Describes the instructions that the printed code can't express in the
+     * given list.
+     */
+    public static ProgramClass replayClass(Clazz sourceClass, List<String> problems)
+    {
+        ClassBuilder classBuilder = new ClassBuilder(((ProgramClass)sourceClass).u4version,
+                                                     sourceClass.getAccessFlags(),
+                                                     sourceClass.getName(),
+                                                     sourceClass.getSuperName());
+        for (int index = 0; index < sourceClass.getInterfaceCount(); index++)
+        {
+            classBuilder.addInterface(sourceClass.getInterfaceName(index));
+        }
+
+        ProgramClass                 targetClass           = classBuilder.getProgramClass();
+        CompactCodeAttributeComposer composer              = new CompactCodeAttributeComposer(targetClass);
+        ConstantPoolEditor           constantPoolEditor    = new ConstantPoolEditor(targetClass);
+        ConstantArgumentCache        constantArgumentCache = new ConstantArgumentCache();
+
+        ProgramClass programClass = (ProgramClass)sourceClass;
+        for (int index = 0; index < programClass.u2methodsCount; index++)
+        {
+            ProgramMethod sourceMethod = programClass.methods[index];
+            ProgramMethod targetMethod = classBuilder.addAndReturnMethod(sourceMethod.getAccessFlags(),
+                                                                         sourceMethod.getName(sourceClass),
+                                                                         sourceMethod.getDescriptor(sourceClass));
+
+            CodeAttribute sourceCode = findCodeAttribute(sourceMethod);
+            if (sourceCode != null)
+            {
+                composer.reset();
+                replayCode(sourceClass, sourceMethod, sourceCode, targetClass, composer, constantArgumentCache, problems);
+
+                // Copy the composed code into a new code attribute of the method.
+                CodeAttribute targetCode = new CodeAttribute(constantPoolEditor.addUtf8Constant(Attribute.CODE));
+                targetCode.u2maxStack  = sourceCode.u2maxStack;
+                targetCode.u2maxLocals = sourceCode.u2maxLocals;
+                composer.visitCodeAttribute(targetClass, targetMethod, targetCode);
+                new AttributesEditor(targetClass, targetMethod, false).addAttribute(targetCode);
+            }
+        }
+
+        return targetClass;
+    }
+
+
+    /**
+     * Replays the given code as a single code fragment on the given composer,
+     * like the printed code does, adding the constants that it refers to to
+     * the given target class. Describes the instructions that the printed
+     * code can't express in the given list. The constant argument cache must
+     * only be used for the given source class.
+     */
+    public static void replayCode(Clazz                        sourceClass,
+                                  Method                       sourceMethod,
+                                  CodeAttribute                sourceCode,
+                                  ProgramClass                 targetClass,
+                                  CompactCodeAttributeComposer composer,
+                                  ConstantArgumentCache        constantArgumentCache,
+                                  List<String>                 problems)
+    {
+        InstructionTable instructionTable = new InstructionTable();
+        instructionTable.build(sourceClass, sourceMethod, sourceCode);
+
+        // Create the labels up front, since branches may go backward.
+        Label[] labels = new Label[instructionTable.codeLength() + 1];
+        for (int offset = 0; offset < instructionTable.codeLength(); offset++)
+        {
+            if (instructionTable.isBranchTarget(offset))
+            {
+                labels[offset] = composer.createLabel();
+            }
+        }
+        for (int index = 0; index < sourceCode.u2exceptionTableLength; index++)
+        {
+            ExceptionInfo exceptionInfo = sourceCode.exceptionTable[index];
+            createLabel(composer, labels, exceptionInfo.u2startPC);
+            createLabel(composer, labels, exceptionInfo.u2endPC);
+            createLabel(composer, labels, exceptionInfo.u2handlerPC);
+        }
+
+        InstructionReplayer instructionReplayer =
+            new InstructionReplayer(composer,
+                                    targetClass,
+                                    constantArgumentCache,
+                                    labels,
+                                    problems,
+                                    sourceMethod.getName(sourceClass) + sourceMethod.getDescriptor(sourceClass));
+
+        composer.beginCodeFragment(0xFFFF);
+        for (int index = 0; index < instructionTable.size(); index++)
+        {
+            int offset = instructionTable.offset(index);
+            if (labels[offset] != null)
+            {
+                composer.label(labels[offset]);
+            }
+            instructionTable.instruction(index).accept(sourceClass, sourceMethod, sourceCode, offset, instructionReplayer);
+        }
+        if (labels[sourceCode.u4codeLength] != null)
+        {
+            composer.label(labels[sourceCode.u4codeLength]);
+        }
+
+        for (int index = 0; index < sourceCode.u2exceptionTableLength; index++)
+        {
+            ExceptionInfo exceptionInfo = sourceCode.exceptionTable[index];
+            Label         startLabel    = labels[exceptionInfo.u2startPC];
+            Label         endLabel      = labels[exceptionInfo.u2endPC];
+            Label         handlerLabel  = labels[exceptionInfo.u2handlerPC];
+            if (exceptionInfo.u2catchType == 0)
+            {
+                composer.catchAll(startLabel, endLabel, handlerLabel);
+            }
+            else
+            {
+                composer.catch_(startLabel, endLabel, handlerLabel, sourceClass.getClassName(exceptionInfo.u2catchType), null);
+            }
+        }
+        composer.endCodeFragment();
+    }
+
+
+    /**
+     * Returns the class file of the given class.
+     */
+    public static byte[] toByteArray(ProgramClass programClass)
+    {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        try (DataOutputStream dataOutputStream = new DataOutputStream(byteArrayOutputStream))
+        {
+            programClass.accept(new ProgramClassWriter(dataOutputStream));
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        return byteArrayOutputStream.toByteArray();
+    }
+
+
+    /**
+     * Compares the methods of the given classes by their instructions and
+     * exception tables, with branch targets as instruction indices and
+     * constants by value, so different constant pool layouts and instruction
+     * encodings don't count as differences.
+     * @return a description of each difference.
+     */
+    public static List<String> compare(ProgramClass originalClass, ProgramClass rebuiltClass)
+    {
+        List<String> differences = new ArrayList<>();
+        if (originalClass.u2methodsCount != rebuiltClass.u2methodsCount)
+        {
+            differences.add("method count " + originalClass.u2methodsCount + " became " + rebuiltClass.u2methodsCount);
+            return differences;
+        }
+
+        for (int index = 0; index < originalClass.u2methodsCount; index++)
+        {
+            ProgramMethod originalMethod = originalClass.methods[index];
+            ProgramMethod rebuiltMethod  = rebuiltClass.methods[index];
+            String        methodName     = originalMethod.getName(originalClass) + originalMethod.getDescriptor(originalClass);
+
+            List<String> originalLines = describe(originalClass, originalMethod);
+            List<String> rebuiltLines  = describe(rebuiltClass,  rebuiltMethod);
+            int          lineCount     = Math.max(originalLines.size(), rebuiltLines.size());
+            for (int line = 0; line < lineCount; line++)
+            {
+                String originalLine = line < originalLines.size() ? originalLines.get(line) : "(nothing)";
+                String rebuiltLine  = line < rebuiltLines.size()  ? rebuiltLines.get(line)  : "(nothing)";
+                if (!originalLine.equals(rebuiltLine))
+                {
+                    differences.add(methodName + " [" + line + "]: " + originalLine + " became " + rebuiltLine);
+                    break;
+                }
+            }
+        }
+
+        return differences;
+    }
+
+
+    // Small utility methods.
+
+    private static CodeAttribute findCodeAttribute(ProgramMethod method)
+    {
+        for (int index = 0; index < method.u2attributesCount; index++)
+        {
+            if (method.attributes[index] instanceof CodeAttribute)
+            {
+                return (CodeAttribute)method.attributes[index];
+            }
+        }
+        return null;
+    }
+
+
+    private static void createLabel(CompactCodeAttributeComposer composer, Label[] labels, int offset)
+    {
+        if (labels[offset] == null)
+        {
+            labels[offset] = composer.createLabel();
+        }
+    }
+
+
+    /**
+     * Returns one line per instruction and per exception table entry of the
+     * given method.
+     */
+    private static List<String> describe(ProgramClass programClass, ProgramMethod method)
+    {
+        List<String>  lines         = new ArrayList<>();
+        CodeAttribute codeAttribute = findCodeAttribute(method);
+        if (codeAttribute == null)
+        {
+            return lines;
+        }
+
+        InstructionTable instructionTable = new InstructionTable();
+        instructionTable.build(programClass, method, codeAttribute);
+
+        // Refer to offsets by instruction index.
+        int[] indices = new int[codeAttribute.u4codeLength + 1];
+        for (int index = 0; index < instructionTable.size(); index++)
+        {
+            indices[instructionTable.offset(index)] = index;
+        }
+        indices[codeAttribute.u4codeLength] = instructionTable.size();
+
+        instructionTable.instructionsAccept(programClass, method, codeAttribute,
+                                            new InstructionDescriber(lines, indices, new ConstantArgumentCache()));
+
+        for (int index = 0; index < codeAttribute.u2exceptionTableLength; index++)
+        {
+            ExceptionInfo exceptionInfo = codeAttribute.exceptionTable[index];
+            lines.add("catch " + indices[exceptionInfo.u2startPC] +
+                      ".." + indices[exceptionInfo.u2endPC] +
+                      " -> " + indices[exceptionInfo.u2handlerPC] +
+                      " " + (exceptionInfo.u2catchType == 0 ? "any" : programClass.getClassName(exceptionInfo.u2catchType)));
+        }
+
+        return lines;
+    }
+
+
+    /**
+     * Returns the public composer method with the given name that accepts
+     * the given values, preferring exact types over widened ones, like
+     * the compiler of the printed code, or null if there is none.
+     */
+    private static java.lang.reflect.Method findComposerMethod(String name, List<Object> values)
+    {
+        return COMPOSER_METHODS.computeIfAbsent(signature(name, values), key -> {
+            java.lang.reflect.Method bestMethod = null;
+            int                      bestScore  = -1;
+            for (java.lang.reflect.Method method : CompactCodeAttributeComposer.class.getMethods())
+            {
+                if (method.getName().equals(name) &&
+                    method.getParameterCount() == values.size())
+                {
+                    int score = score(method.getParameterTypes(), values);
+                    if (score > bestScore)
+                    {
+                        bestMethod = method;
+                        bestScore  = score;
+                    }
+                }
+            }
+            return Optional.ofNullable(bestMethod);
+        }).orElse(null);
+    }
+
+
+    /**
+     * Returns the number of exactly matching parameters, or -1 if the given
+     * values can't be passed to parameters of the given types.
+     */
+    private static int score(Class<?>[] parameterTypes, List<Object> values)
+    {
+        int score = 0;
+        for (int index = 0; index < parameterTypes.length; index++)
+        {
+            Class<?> type  = parameterTypes[index];
+            Object   value = values.get(index);
+            if (type == int.class    && value instanceof Integer ||
+                type == double.class && value instanceof Double  ||
+                type == value.getClass())
+            {
+                score++;
+            }
+            else if (type.isPrimitive() ?
+                         !(value instanceof Integer && (type == long.class || type == float.class || type == double.class)) :
+                         !type.isInstance(value))
+            {
+                return -1;
+            }
+        }
+        return score;
+    }
+
+
+    /**
+     * Returns a call signature like "ldc(double)".
+     */
+    private static String signature(String name, List<Object> values)
+    {
+        StringBuilder signature = new StringBuilder(name).append('(');
+        for (int index = 0; index < values.size(); index++)
+        {
+            if (index > 0)
+            {
+                signature.append(", ");
+            }
+            Object value = values.get(index);
+            signature.append(value instanceof Integer ? "int"    :
+                             value instanceof Double  ? "double" :
+                                                        value.getClass().getSimpleName());
+        }
+        return signature.append(')').toString();
+    }
+
+
+    // Inner classes.
+
+    /**
+     * Makes the composer calls of the instructions it visits on a real
+     * composer, with the values of the printed arguments.
+     */
+    private static class InstructionReplayer extends InstructionEmitter
+    {
+        private final CompactCodeAttributeComposer composer;
+        private final ProgramClass                 targetClass;
+        private final ConstantAdder                constantAdder;
+        private final ConstantPoolEditor           constantPoolEditor;
+        private final Label[]                      labels;
+        private final List<String>                 problems;
+        private final String                       methodName;
+
+
+        public InstructionReplayer(CompactCodeAttributeComposer composer,
+                                   ProgramClass                 targetClass,
+                                   ConstantArgumentCache        constantArgumentCache,
+                                   Label[]                      labels,
+                                   List<String>                 problems,
+                                   String                       methodName)
+        {
+            super(constantArgumentCache, false);
+            this.composer           = composer;
+            this.targetClass        = targetClass;
+            this.constantAdder      = new ConstantAdder(targetClass);
+            this.constantPoolEditor = new ConstantPoolEditor(targetClass);
+            this.labels             = labels;
+            this.problems           = problems;
+            this.methodName         = methodName;
+        }
+
+
+        @Override
+        protected void emit(Clazz clazz, int offset, Instruction instruction, String name)
+        {
+            replay(clazz, offset, instruction, name, new ArrayList<>(), null);
+        }
+
+
+        @Override
+        protected void emit(Clazz clazz, int offset, Instruction instruction, String name, int value)
+        {
+            List<Object> values = new ArrayList<>();
+            values.add(value);
+            replay(clazz, offset, instruction, name, values, null);
+        }
+
+
+        @Override
+        protected void emit(Clazz clazz, int offset, Instruction instruction, String name, int value1, int value2)
+        {
+            List<Object> values = new ArrayList<>();
+            values.add(value1);
+            values.add(value2);
+            replay(clazz, offset, instruction, name, values, null);
+        }
+
+
+        @Override
+        protected void emitConstant(Clazz clazz, int offset, Instruction instruction, String name, ConstantArgumentCache.Argument argument)
+        {
+            List<Object> values = new ArrayList<>();
+            String       reason = addValues(argument, values);
+            replay(clazz, offset, instruction, name, values, reason);
+        }
+
+
+        @Override
+        protected void emitConstant(Clazz clazz, int offset, Instruction instruction, String name, ConstantArgumentCache.Argument argument, int value)
+        {
+            List<Object> values = new ArrayList<>();
+            String       reason = addValues(argument, values);
+            values.add(value);
+            replay(clazz, offset, instruction, name, values, reason);
+        }
+
+
+        @Override
+        protected void emitHoistedConstant(Clazz clazz, int offset, Instruction instruction, String name, int constantIndex)
+        {
+            List<Object> values = new ArrayList<>();
+            values.add(constantAdder.addConstant(clazz, constantIndex));
+            replay(clazz, offset, instruction, name, values, null);
+        }
+
+
+        @Override
+        protected void emitHoistedConstant(Clazz clazz, int offset, Instruction instruction, String name, int constantIndex, int value)
+        {
+            List<Object> values = new ArrayList<>();
+            values.add(constantAdder.addConstant(clazz, constantIndex));
+            values.add(value);
+            replay(clazz, offset, instruction, name, values, null);
+        }
+
+
+        @Override
+        protected void emitBranch(Clazz clazz, int offset, Instruction instruction, String name, int targetOffset)
+        {
+            List<Object> values = new ArrayList<>();
+            values.add(labels[targetOffset]);
+            replay(clazz, offset, instruction, name, values, null);
+        }
+
+
+        @Override
+        protected void emitTableSwitch(Clazz clazz, int offset, TableSwitchInstruction tableSwitchInstruction)
+        {
+            List<Object> values = new ArrayList<>();
+            values.add(labels[offset + tableSwitchInstruction.defaultOffset]);
+            values.add(tableSwitchInstruction.lowCase);
+            values.add(tableSwitchInstruction.highCase);
+            values.add(jumpLabels(offset, tableSwitchInstruction));
+            replay(clazz, offset, tableSwitchInstruction, "tableswitch", values, null);
+        }
+
+
+        @Override
+        protected void emitLookUpSwitch(Clazz clazz, int offset, LookUpSwitchInstruction lookUpSwitchInstruction)
+        {
+            List<Object> values = new ArrayList<>();
+            values.add(labels[offset + lookUpSwitchInstruction.defaultOffset]);
+            values.add(lookUpSwitchInstruction.cases);
+            values.add(jumpLabels(offset, lookUpSwitchInstruction));
+            replay(clazz, offset, lookUpSwitchInstruction, "lookupswitch", values, null);
+        }
+
+
+        /**
+         * Calls the composer method with the given name and argument values,
+         * unless the printed arguments can't express their values for the
+         * given reason. Otherwise, or if the call isn't possible, the
+         * instruction is listed as a problem and copied instead.
+         */
+        private void replay(Clazz clazz, int offset, Instruction instruction, String name, List<Object> values, String reason)
+        {
+            if (reason == null)
+            {
+                java.lang.reflect.Method composerMethod = findComposerMethod(name, values);
+                if (composerMethod == null)
+                {
+                    reason = "the composer has no method " + signature(name, values);
+                }
+                else
+                {
+                    try
+                    {
+                        composerMethod.invoke(composer, values.toArray());
+                        return;
+                    }
+                    catch (IllegalAccessException e)
+                    {
+                        reason = "can't call the composer method " + signature(name, values);
+                    }
+                    catch (InvocationTargetException e)
+                    {
+                        reason = "the composer method " + signature(name, values) + " failed: " + e.getCause();
+                    }
+                }
+            }
+
+            problems.add(methodName + ": " + instruction.toString(offset) + " is printed as ." + name + ": " + reason);
+            appendOriginal(clazz, instruction);
+        }
+
+
+        /**
+         * Adds the values of the given rendered constant arguments to the
+         * given list.
+         * @return why the printed arguments can't express their values, or
+         *         null.
+         */
+        private String addValues(ConstantArgumentCache.Argument argument, List<Object> values)
+        {
+            String reason = null;
+            for (Object value : argument.values)
+            {
+                if (value instanceof ConstantArgumentCache.Unexpressible)
+                {
+                    if (reason == null)
+                    {
+                        reason = ((ConstantArgumentCache.Unexpressible)value).reason;
+                    }
+                }
+                else if (value instanceof ConstantArgumentCache.ClassReference)
+                {
+                    ConstantArgumentCache.ClassReference classReference = (ConstantArgumentCache.ClassReference)value;
+                    values.add(classReference.isTargetClass ?
+                                   targetClass :
+                                   (Object)constantPoolEditor.addClassConstant(classReference.className, null));
+                }
+                else
+                {
+                    values.add(value);
+                }
+            }
+            return reason;
+        }
+
+
+        private Label[] jumpLabels(int offset, SwitchInstruction switchInstruction)
+        {
+            Label[] jumpLabels = new Label[switchInstruction.jumpOffsets.length];
+            for (int index = 0; index < jumpLabels.length; index++)
+            {
+                jumpLabels[index] = labels[offset + switchInstruction.jumpOffsets[index]];
+            }
+            return jumpLabels;
+        }
+
+
+        /**
+         * Appends a copy of the given instruction, so the rest of the code
+         * can still be compared. Branches need labels, so they are left out.
+         */
+        private void appendOriginal(Clazz clazz, Instruction instruction)
+        {
+            if (instruction instanceof SimpleInstruction)
+            {
+                SimpleInstruction simpleInstruction = (SimpleInstruction)instruction;
+                composer.appendInstruction(new SimpleInstruction(simpleInstruction.opcode, simpleInstruction.constant));
+            }
+            else if (instruction instanceof VariableInstruction)
+            {
+                VariableInstruction variableInstruction = (VariableInstruction)instruction;
+                composer.appendInstruction(new VariableInstruction(variableInstruction.opcode,
+                                                                   variableInstruction.variableIndex,
+                                                                   variableInstruction.constant));
+            }
+            else if (instruction instanceof ConstantInstruction)
+            {
+                // The constant may end up at an index that needs a wider instruction.
+                ConstantInstruction constantInstruction = (ConstantInstruction)instruction;
+                int                 constantIndex       = constantAdder.addConstant(clazz, constantInstruction.constantIndex);
+                composer.appendInstruction(new ConstantInstruction(constantInstruction.opcode,
+                                                                   constantIndex,
+                                                                   constantInstruction.constant).shrink());
+            }
+        }
+    }
+
+
+    /**
+     * Describes each instruction it visits as a line, independently of the
+     * constant pool layout and of the instruction encoding.
+     */
+    private static class InstructionDescriber implements InstructionVisitor
+    {
+        private final List<String>          lines;
+        private final int[]                 indices;
+        private final ConstantArgumentCache constantArgumentCache;
+
+
+        public InstructionDescriber(List<String> lines, int[] indices, ConstantArgumentCache constantArgumentCache)
+        {
+            this.lines                 = lines;
+            this.indices               = indices;
+            this.constantArgumentCache = constantArgumentCache;
+        }
+
+
+        @Override
+        public void visitSimpleInstruction(Clazz clazz, Method method, CodeAttribute codeAttribute, int offset, SimpleInstruction simpleInstruction)
+        {
+            lines.add(simpleInstruction.getName() + " " + simpleInstruction.constant);
+        }
+
+
+        @Override
+        public void visitVariableInstruction(Clazz clazz, Method method, CodeAttribute codeAttribute, int offset, VariableInstruction variableInstruction)
+        {
+            lines.add(variableInstruction.getName() + " " + variableInstruction.variableIndex + " " + variableInstruction.constant);
+        }
+
+
+        @Override
+        public void visitConstantInstruction(Clazz clazz, Method method, CodeAttribute codeAttribute, int offset, ConstantInstruction constantInstruction)
+        {
+            // Ldc and ldc_w only differ in the width of the index.
+            String name = constantInstruction.opcode == Instruction.OP_LDC_W ? "ldc" : constantInstruction.getName();
+            String text = constantArgumentCache.getArgument(clazz, constantInstruction.constantIndex).text;
+            if (constantInstruction.opcode == Instruction.OP_INVOKEDYNAMIC)
+            {
+                // Leave out the bootstrap method index.
+                text = text.substring(text.indexOf(", ") + 2);
+            }
+            lines.add(name + " " + text + " " + constantInstruction.constant);
+        }
+
+
+        @Override
+        public void visitBranchInstruction(Clazz clazz, Method method, CodeAttribute codeAttribute, int offset, BranchInstruction branchInstruction)
+        {
+            // Goto and goto_w only differ in the width of the offset.
+            String name = branchInstruction.opcode == Instruction.OP_GOTO_W ? "goto" : branchInstruction.getName();
+            lines.add(name + " -> " + indices[offset + branchInstruction.branchOffset]);
+        }
+
+
+        @Override
+        public void visitAnySwitchInstruction(Clazz clazz, Method method, CodeAttribute codeAttribute, int offset, SwitchInstruction switchInstruction)
+        {
+            StringBuilder line = new StringBuilder(switchInstruction.getName());
+            if (switchInstruction instanceof TableSwitchInstruction)
+            {
+                TableSwitchInstruction tableSwitchInstruction = (TableSwitchInstruction)switchInstruction;
+                line.append(' ').append(tableSwitchInstruction.lowCase).append("..").append(tableSwitchInstruction.highCase);
+            }
+            else
+            {
+                line.append(' ').append(Arrays.toString(((LookUpSwitchInstruction)switchInstruction).cases));
+            }
+            line.append(" default -> ").append(indices[offset + switchInstruction.defaultOffset]);
+            for (int jumpOffset : switchInstruction.jumpOffsets)
+            {
+                line.append(", ").append(indices[offset + jumpOffset]);
+            }
+            lines.add(line.toString());
+        }
+    }
+}
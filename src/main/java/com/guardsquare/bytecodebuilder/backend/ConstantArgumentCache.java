@@ -0,0 +1,263 @@
+package com.guardsquare.bytecodebuilder.backend;
+
+import proguard.classfile.Clazz;
+import proguard.classfile.constant.*;
+import proguard.classfile.constant.visitor.ConstantVisitor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Renders the arguments of constant instructions, at most once per constant
+ * pool entry of a class. All printers of the class share the same cache, so
+ * repeated references to the same field, method or class cost an array load.
+ *
+ * Class, string, field and method constants also get the expression that adds
+ * them to the target class, so they can be hoisted into locals up front.
+ *
+ * Next to its text, each argument has the values that the printed
+ * expressions evaluate to, so the composer calls can be replayed without
+ * compiling the printed code.
+ */
+public class ConstantArgumentCache
+{
+    private volatile Argument[] arguments = new Argument[0];
+
+
+    /**
+     * Returns the rendered argument for the given constant pool entry of the
+     * given class. The cache must only be used for a single class.
+     */
+    public Argument getArgument(Clazz clazz, int constantIndex)
+    {
+        Argument[] arguments = this.arguments;
+        Argument   argument  = constantIndex < arguments.length ? arguments[constantIndex] : null;
+        if (argument == null)
+        {
+            argument = render(clazz, constantIndex);
+        }
+        return argument;
+    }
+
+
+    // Small utility methods.
+
+    private synchronized Argument render(Clazz clazz, int constantIndex)
+    {
+        if (arguments.length <= constantIndex)
+        {
+            arguments = Arrays.copyOf(arguments, Math.max(constantIndex + 1, arguments.length * 2));
+        }
+
+        Argument argument = arguments[constantIndex];
+        if (argument == null)
+        {
+            argument = new ConstantArgumentFinder().render(clazz, constantIndex);
+            arguments[constantIndex] = argument;
+        }
+        return argument;
+    }
+
+
+    /**
+     * The rendered argument of a constant instruction. Its values are Strings,
+     * Integers and Doubles, like the printed literals, or
+     * {@link ClassReference} and {@link Unexpressible} instances.
+     */
+    public static class Argument
+    {
+        public final String   text;
+        public final boolean  isClassString;
+        public final String   hoistedExpression;
+        public final Object[] values;
+
+
+        public Argument(String text, boolean isClassString, String hoistedExpression, Object[] values)
+        {
+            this.text              = text;
+            this.isClassString     = isClassString;
+            this.hoistedExpression = hoistedExpression;
+            this.values            = values;
+        }
+
+
+        public boolean isHoistable()
+        {
+            return hoistedExpression != null;
+        }
+    }
+
+
+    /**
+     * A class constant that the printed code refers to: the target class
+     * itself, or the index of a class constant that it adds by name.
+     */
+    public static class ClassReference
+    {
+        public final String  className;
+        public final boolean isTargetClass;
+
+
+        public ClassReference(String className, boolean isTargetClass)
+        {
+            this.className     = className;
+            this.isTargetClass = isTargetClass;
+        }
+    }
+
+
+    /**
+     * A value that the printed code can't express.
+     */
+    public static class Unexpressible
+    {
+        public final String reason;
+
+
+        public Unexpressible(String reason)
+        {
+            this.reason = reason;
+        }
+    }
+
+
+    private static class ConstantArgumentFinder implements ConstantVisitor {
+        private final StringBuilder argument = new StringBuilder();
+        private final List<Object> values = new ArrayList<>();
+        private boolean isClassString;
+        private String hoistedExpression;
+
+        public Argument render(Clazz clazz, int constantIndex)
+        {
+            isClassString = false;
+            hoistedExpression = null;
+            argument.setLength(0);
+            values.clear();
+            clazz.constantPoolEntryAccept(constantIndex, this);
+            return new Argument(argument.toString(), isClassString, hoistedExpression, values.toArray());
+        }
+
+        @Override
+        public void visitAnyConstant(Clazz clazz, Constant constant)
+        {
+            argument.append('"').append(constant).append('"');
+            values.add(new Unexpressible("the constant is printed as a string"));
+        }
+
+        @Override
+        public void visitFieldrefConstant(Clazz clazz, FieldrefConstant fieldrefConstant) {
+            appendQuoted(fieldrefConstant.getClassName(clazz)).append(", ");
+            appendQuoted(fieldrefConstant.getName(clazz)).append(", ");
+            appendQuoted(fieldrefConstant.getType(clazz));
+            hoistedExpression = "constantPoolEditor.addFieldrefConstant(" + argument + ", null, null)";
+        }
+
+        @Override
+        public void visitClassConstant(Clazz clazz, ClassConstant classConstant) {
+            boolean isTargetClass = classConstant.getName(clazz).equals(clazz.getName());
+            values.add(new ClassReference(classConstant.getName(clazz), isTargetClass));
+            if (isTargetClass) {
+                argument.append("targetClass");
+                hoistedExpression = "constantPoolEditor.addClassConstant(targetClass)";
+            } else {
+                isClassString = true;
+                argument.append("constantPoolEditor.addClassConstant(\"").append(classConstant.getName(clazz)).append("\", null)");
+                hoistedExpression = argument.toString();
+            }
+        }
+
+        @Override
+        public void visitAnyMethodrefConstant(Clazz clazz, AnyMethodrefConstant anyMethodrefConstant) {
+            appendQuoted(anyMethodrefConstant.getClassName(clazz)).append(", ");
+            appendQuoted(anyMethodrefConstant.getName(clazz)).append(", ");
+            appendQuoted(anyMethodrefConstant.getType(clazz));
+            hoistedExpression = (anyMethodrefConstant.getTag() == Constant.INTERFACE_METHODREF ?
+                                     "constantPoolEditor.addInterfaceMethodrefConstant(" :
+                                     "constantPoolEditor.addMethodrefConstant(") + argument + ", null, null)";
+        }
+
+        @Override
+        public void visitInvokeDynamicConstant(Clazz clazz, InvokeDynamicConstant invokeDynamicConstant) {
+            // The index refers to a bootstrap method that the printed code doesn't create.
+            values.add(new Unexpressible("the bootstrap method isn't printed"));
+            argument.append(invokeDynamicConstant.getBootstrapMethodAttributeIndex()).append(", ");
+            appendQuoted(invokeDynamicConstant.getName(clazz)).append(", ");
+            appendQuoted(invokeDynamicConstant.getType(clazz));
+        }
+
+        @Override
+        public void visitStringConstant(Clazz clazz, StringConstant stringConstant) {
+            values.add(stringConstant.getString(clazz));
+            appendEscaped(stringConstant.getString(clazz));
+            hoistedExpression = "constantPoolEditor.addStringConstant(" + argument + ", null, null)";
+        }
+
+        @Override
+        public void visitUtf8Constant(Clazz clazz, Utf8Constant utf8Constant) {
+            values.add(utf8Constant.getString());
+            appendEscaped(utf8Constant.getString());
+        }
+
+        @Override
+        public void visitIntegerConstant(Clazz clazz, IntegerConstant integerConstant) {
+            values.add(integerConstant.getValue());
+            argument.append(integerConstant.getValue());
+        }
+
+        @Override
+        public void visitLongConstant(Clazz clazz, LongConstant longConstant) {
+            // Without a suffix, the literal is an int.
+            long value = longConstant.getValue();
+            values.add(value == (int)value ?
+                           (Object)(int)value :
+                           new Unexpressible("the long literal has no L suffix"));
+            argument.append(value);
+        }
+
+        @Override
+        public void visitFloatConstant(Clazz clazz, FloatConstant floatConstant) {
+            // Without a suffix, the literal is a double.
+            float value = floatConstant.getValue();
+            values.add(Float.isFinite(value) ?
+                           (Object)Double.parseDouble(Float.toString(value)) :
+                           new Unexpressible("the float isn't a Java literal"));
+            argument.append(value);
+        }
+
+        @Override
+        public void visitDoubleConstant(Clazz clazz, DoubleConstant doubleConstant) {
+            double value = doubleConstant.getValue();
+            values.add(Double.isFinite(value) ?
+                           (Object)value :
+                           new Unexpressible("the double isn't a Java literal"));
+            argument.append(value);
+        }
+
+        private StringBuilder appendQuoted(String string) {
+            values.add(string);
+            return argument.append('"').append(string).append('"');
+        }
+
+        /**
+         * Appends the given string as a Java string literal, escaping it in a single pass.
+         */
+        private void appendEscaped(String string) {
+            argument.append('"');
+            for (int index = 0; index < string.length(); index++) {
+                char c = string.charAt(index);
+                switch (c) {
+                    case '\\': argument.append("\\\\"); break;
+                    case '\t': argument.append("\\t");  break;
+                    case '\b': argument.append("\\b");  break;
+                    case '\n': argument.append("\\n");  break;
+                    case '\r': argument.append("\\r");  break;
+                    case '\f': argument.append("\\f");  break;
+                    case '"':  argument.append("\\\""); break;
+                    default:   argument.append(c);
+                }
+            }
+            argument.append('"');
+        }
+    }
+}
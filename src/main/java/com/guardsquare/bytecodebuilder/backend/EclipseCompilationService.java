@@ -0,0 +1,319 @@
+package com.guardsquare.bytecodebuilder.backend;
+
+import org.eclipse.jdt.core.compiler.CategorizedProblem;
+import org.eclipse.jdt.core.compiler.CompilationProgress;
+import org.eclipse.jdt.internal.compiler.ClassFile;
+import org.eclipse.jdt.internal.compiler.CompilationResult;
+import org.eclipse.jdt.internal.compiler.Compiler;
+import org.eclipse.jdt.internal.compiler.DefaultErrorHandlingPolicies;
+import org.eclipse.jdt.internal.compiler.batch.CompilationUnit;
+import org.eclipse.jdt.internal.compiler.batch.FileSystem;
+import org.eclipse.jdt.internal.compiler.env.ICompilationUnit;
+import org.eclipse.jdt.internal.compiler.impl.CompilerOptions;
+import org.eclipse.jdt.internal.compiler.parser.Parser;
+import org.eclipse.jdt.internal.compiler.problem.DefaultProblemFactory;
+import org.eclipse.jdt.internal.compiler.problem.ProblemReporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+import static com.guardsquare.bytecodebuilder.BytecodeBuilderToolWindow.CLASS_NAME;
+
+/**
+ * Long-lived front end on the Eclipse compiler (ECJ).
+ *
+ * The name environment over the JDK and the class path is kept alive between
+ * compilations, so its archives are opened and the types it has looked up
+ * are found again without searching. It is only recreated when the custom
+ * classpath changes, or when a {@link ClassPathIndex} reports changes in its
+ * directories, and is cleaned up together with this service.
+ *
+ * The options match those of {@link CompilationService}: like javac's
+ * "--release 8", the code is compiled against the Java 8 API of the running
+ * JDK, from its ct.sym, into Java 8 class files. They carry no debug
+ * information, and unused locals are preserved, like javac.
+ */
+public class EclipseCompilationService implements CompilerBackend
+{
+    private static final System.Logger       LOG     = System.getLogger(EclipseCompilationService.class.getName());
+    private static final String              RELEASE = "8";
+    private static final Map<String, String> OPTIONS = createOptions();
+
+    private FileSystem     nameEnvironment;
+    private ClassPathIndex classPathIndex;
+    private String         classPath;
+    private String         directoryVersion;
+
+
+    @Override
+    public String getName()
+    {
+        return ECLIPSE;
+    }
+
+
+    @Override
+    public synchronized List<ByteBuffer> compile(String javaCode, PrintWriter printWriter, String customClassPath, BooleanSupplier cancelled) throws IOException
+    {
+        List<ByteBuffer> classFiles = new ArrayList<>();
+        boolean[]        success    = { true };
+
+        Compiler compiler = new Compiler(getNameEnvironment(customClassPath),
+                                         DefaultErrorHandlingPolicies.proceedWithAllProblems(),
+                                         new CompilerOptions(OPTIONS),
+                                         result -> {
+                                             success[0] &= !printProblems(result, printWriter, false);
+                                             for (ClassFile classFile : result.getClassFiles())
+                                             {
+                                                 classFiles.add(ByteBuffer.wrap(classFile.getBytes()));
+                                             }
+                                         },
+                                         new DefaultProblemFactory(Locale.ENGLISH),
+                                         null,
+                                         new CancellingCompilationProgress(cancelled));
+
+        // ECJ aborts quietly when its progress reports the cancellation.
+        compiler.compile(new ICompilationUnit[] { compilationUnit(javaCode) });
+        CodeUtil.checkCancelled(cancelled);
+
+        if (!success[0])
+        {
+            throw new IOException("Compilation failed.");
+        }
+
+        return classFiles;
+    }
+
+
+    @Override
+    public synchronized boolean parse(String javaCode, PrintWriter printWriter, String customClassPath, BooleanSupplier cancelled)
+    {
+        // The parser has no hooks for cancellation, but it is fast.
+        CodeUtil.checkCancelled(cancelled);
+
+        CompilerOptions  options  = new CompilerOptions(OPTIONS);
+        ICompilationUnit unit     = compilationUnit(javaCode);
+        ProblemReporter  reporter = new ProblemReporter(DefaultErrorHandlingPolicies.proceedWithAllProblems(),
+                                                        options,
+                                                        new DefaultProblemFactory(Locale.ENGLISH));
+
+        CompilationResult result = new CompilationResult(unit, 0, 1, options.maxProblemsPerUnit);
+        new Parser(reporter, false).parse(unit, result);
+
+        return !printProblems(result, printWriter, true);
+    }
+
+
+    @Override
+    public synchronized String getClassPathVersion(String customClassPath)
+    {
+        getNameEnvironment(customClassPath);
+
+        // Without an index, changes can't be noticed.
+        return classPathIndex != null ?
+            classPathIndex.getDirectoryVersion() :
+            null;
+    }
+
+
+    /**
+     * Sets up the name environment for the given custom classpath ahead of
+     * the next compilation.
+     */
+    @Override
+    public synchronized void prepare(String customClassPath)
+    {
+        getNameEnvironment(customClassPath);
+    }
+
+
+    @Override
+    public synchronized void close()
+    {
+        cleanUpNameEnvironment();
+    }
+
+
+    // Small utility methods.
+
+    /**
+     * Returns the shared name environment, recreating it if the given custom
+     * classpath differs from the one it was set up with, or if the files in
+     * its directories have changed since.
+     */
+    private FileSystem getNameEnvironment(String customClassPath)
+    {
+        String newClassPath = System.getProperty("java.class.path");
+        if (customClassPath != null && !"".equals(customClassPath))
+        {
+            newClassPath += File.pathSeparator + customClassPath;
+        }
+
+        if (!newClassPath.equals(classPath))
+        {
+            cleanUpNameEnvironment();
+
+            try
+            {
+                classPathIndex = new ClassPathIndex(newClassPath);
+            }
+            catch (IOException e)
+            {
+                // Never reuse results for this class path then.
+                LOG.log(System.Logger.Level.WARNING, "Can't index the class path [" + newClassPath + "]", e);
+            }
+            classPath = newClassPath;
+        }
+        else if (nameEnvironment != null &&
+                 classPathIndex  != null &&
+                 !classPathIndex.getDirectoryVersion().equals(directoryVersion))
+        {
+            // The name environment caches directory listings and classes.
+            nameEnvironment.cleanup();
+            nameEnvironment = null;
+        }
+
+        if (nameEnvironment == null)
+        {
+            // The JDK classes come from the Java 8 API in the JDK's ct.sym,
+            // rather than from its run-time image, like with javac's --release.
+            List<FileSystem.Classpath> classpaths = new ArrayList<>();
+            classpaths.add(FileSystem.getOlderSystemRelease(System.getProperty("java.home"), RELEASE, null));
+            for (String entry : newClassPath.split(File.pathSeparator))
+            {
+                if (!entry.isEmpty())
+                {
+                    FileSystem.Classpath classpath = FileSystem.getClasspath(entry, "UTF-8", null);
+                    if (classpath != null)
+                    {
+                        classpaths.add(classpath);
+                    }
+                }
+            }
+
+            // The constructor that takes the classpaths is protected.
+            nameEnvironment  = new FileSystem(classpaths.toArray(new FileSystem.Classpath[0]), new String[0], false) {};
+            directoryVersion = classPathIndex != null ? classPathIndex.getDirectoryVersion() : null;
+        }
+
+        return nameEnvironment;
+    }
+
+
+    private void cleanUpNameEnvironment()
+    {
+        if (nameEnvironment != null)
+        {
+            nameEnvironment.cleanup();
+            nameEnvironment = null;
+            classPath       = null;
+        }
+        if (classPathIndex != null)
+        {
+            try
+            {
+                classPathIndex.close();
+            }
+            catch (IOException e)
+            {
+                LOG.log(System.Logger.Level.WARNING, "Can't close the class path index", e);
+            }
+            classPathIndex = null;
+        }
+    }
+
+
+    /**
+     * Prints the errors and, unless only errors are requested, the warnings
+     * of the given result, in the same format as the javac backend.
+     * @return whether there were any errors.
+     */
+    private static boolean printProblems(CompilationResult result, PrintWriter printWriter, boolean errorsOnly)
+    {
+        boolean              hasErrors = false;
+        CategorizedProblem[] problems  = result.getAllProblems();
+        if (problems != null)
+        {
+            for (CategorizedProblem problem : problems)
+            {
+                hasErrors |= problem.isError();
+                if (problem.isError() || (problem.isWarning() && !errorsOnly))
+                {
+                    printWriter.print(problem.isError() ? "error: " : "warning: ");
+                    printWriter.print(problem.getMessage());
+                    printWriter.println(" at line " + problem.getSourceLineNumber() + ".");
+                }
+            }
+        }
+        return hasErrors;
+    }
+
+
+    private static ICompilationUnit compilationUnit(String javaCode)
+    {
+        return new CompilationUnit(javaCode.toCharArray(), CLASS_NAME + ".java", "UTF-8");
+    }
+
+
+    private static Map<String, String> createOptions()
+    {
+        Map<String, String> options = new HashMap<>();
+        options.put(CompilerOptions.OPTION_Release,                CompilerOptions.ENABLED);
+        options.put(CompilerOptions.OPTION_Compliance,             CompilerOptions.VERSION_1_8);
+        options.put(CompilerOptions.OPTION_Source,                 CompilerOptions.VERSION_1_8);
+        options.put(CompilerOptions.OPTION_TargetPlatform,         CompilerOptions.VERSION_1_8);
+        options.put(CompilerOptions.OPTION_LineNumberAttribute,    CompilerOptions.DO_NOT_GENERATE);
+        options.put(CompilerOptions.OPTION_LocalVariableAttribute, CompilerOptions.DO_NOT_GENERATE);
+        options.put(CompilerOptions.OPTION_SourceFileAttribute,    CompilerOptions.DO_NOT_GENERATE);
+        options.put(CompilerOptions.OPTION_PreserveUnusedLocal,    CompilerOptions.PRESERVE);
+        return options;
+    }
+
+
+    // Inner classes.
+
+    /**
+     * Lets ECJ abort the compilation once it is cancelled.
+     */
+    private static class CancellingCompilationProgress extends CompilationProgress
+    {
+        private final BooleanSupplier cancelled;
+
+
+        public CancellingCompilationProgress(BooleanSupplier cancelled)
+        {
+            this.cancelled = cancelled;
+        }
+
+
+        @Override
+        public boolean isCanceled()
+        {
+            return cancelled.getAsBoolean();
+        }
+
+
+        @Override
+        public void begin(int remainingWork) {}
+
+
+        @Override
+        public void done() {}
+
+
+        @Override
+        public void setTaskName(String name) {}
+
+
+        @Override
+        public void worked(int workIncrement, int remainingWork) {}
+    }
+}
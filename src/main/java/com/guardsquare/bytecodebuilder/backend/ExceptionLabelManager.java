@@ -1,41 +1,80 @@
 package com.guardsquare.bytecodebuilder.backend;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Arrays;
 
+import static com.guardsquare.bytecodebuilder.backend.CodeUtil.NEW_LINE;
+
+/**
+ * Collects the exception table of a code attribute and prints it as catch
+ * statements.
+ *
+ * The try ranges and handlers are labeled through the {@link LabelPrinter},
+ * so entries that share a start, end or handler offset, or that start at a
+ * branch target, share the same label. The entries themselves are kept in
+ * dense side arrays.
+ */
 public class ExceptionLabelManager
 {
-    private final List<String> labelNames = new ArrayList<>();
-    int tryStartLabels = 0;
-    int tryEndLabels   = 0;
-    int handlerLabels  = 0;
+    private final LabelPrinter labelPrinter;
+
+    // The start, end and handler offsets of each catch, and its type.
+    private int[]    catchOffsets = new int[48];
+    private String[] catchTypes   = new String[16];
+    private int      catchCount;
+
 
-    private String registerFresh(String formatString, int number)
+    public ExceptionLabelManager(LabelPrinter labelPrinter)
     {
-        String result = String.format(formatString, number);
-        labelNames.add(result);
-        return result;
+        this.labelPrinter = labelPrinter;
     }
 
-    public String getFreshTryStartLabel()
+
+    /**
+     * Adds the given exception table entry. The exception class name is null
+     * for entries that catch everything.
+     */
+    public void addCatch(int tryStartOffset, int tryEndOffset, int handlerOffset, String exceptionClassName)
     {
-        return registerFresh("TRY_START_%s", tryStartLabels++);
+        if (catchTypes.length == catchCount)
+        {
+            catchOffsets = Arrays.copyOf(catchOffsets, catchCount * 6);
+            catchTypes   = Arrays.copyOf(catchTypes,   catchCount * 2);
+        }
+
+        labelPrinter.addLabel(tryStartOffset, LabelPrinter.TRY_START);
+        labelPrinter.addLabel(tryEndOffset,   LabelPrinter.TRY_END);
+        labelPrinter.addLabel(handlerOffset,  LabelPrinter.HANDLER);
+
+        catchOffsets[catchCount * 3]     = tryStartOffset;
+        catchOffsets[catchCount * 3 + 1] = tryEndOffset;
+        catchOffsets[catchCount * 3 + 2] = handlerOffset;
+        catchTypes[catchCount++]         = exceptionClassName;
     }
 
-    public String getFreshTryEndLabel()
+
+    public int getCatchCount()
     {
-        return registerFresh("TRY_END_%s", tryEndLabels++);
+        return catchCount;
     }
 
-    public String getFreshHandlerLabel()
+
+    public void printCatches(StringBuilder builder)
     {
-        return registerFresh("HANDLER_START_%s", handlerLabels++);
-    }
+        for (int index = 0; index < catchCount; index++)
+        {
+            String exceptionClassName = catchTypes[index];
 
-    public List<String> getLabelCreationStatements() {
-        return labelNames.stream()
-                .map(labelName -> String.format("Label %s = composer.createLabel();", labelName))
-                .collect(Collectors.toList());
+            builder.append(exceptionClassName != null ? "        .catch_(" : "        .catchAll(");
+            labelPrinter.appendLabelName(builder, catchOffsets[index * 3]);
+            builder.append(", ");
+            labelPrinter.appendLabelName(builder, catchOffsets[index * 3 + 1]);
+            builder.append(", ");
+            labelPrinter.appendLabelName(builder, catchOffsets[index * 3 + 2]);
+            if (exceptionClassName != null)
+            {
+                builder.append(", \"").append(exceptionClassName).append("\", null");
+            }
+            builder.append(')').append(NEW_LINE);
+        }
     }
 }
@@ -0,0 +1,121 @@
+package com.guardsquare.bytecodebuilder.backend;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks on an underlying executor, with at most a fixed number of tasks
+ * running at the same time, and with fair queuing between owners.
+ *
+ * Each owner, e.g. a project, has its own queue. Whenever a task finishes,
+ * the next task comes from the owner that has waited longest, so an owner
+ * that submits many tasks can't starve the others.
+ */
+public class FairExecutor
+{
+    private final Executor executor;
+    private final int      maxRunningCount;
+
+    private final Map<Object, Deque<Runnable>> queues      = new HashMap<>();
+    private final Deque<Object>                readyOwners = new ArrayDeque<>();
+    private int                                runningCount;
+
+
+    /**
+     * Creates a new executor.
+     * @param executor        the executor that runs the tasks.
+     * @param maxRunningCount the maximum number of tasks that run at the same
+     *                        time.
+     */
+    public FairExecutor(Executor executor, int maxRunningCount)
+    {
+        this.executor        = executor;
+        this.maxRunningCount = maxRunningCount;
+    }
+
+
+    /**
+     * Returns an executor that queues its tasks for the given owner.
+     */
+    public Executor executorFor(Object owner)
+    {
+        return task -> execute(owner, task);
+    }
+
+
+    /**
+     * Queues the given task for the given owner.
+     */
+    public synchronized void execute(Object owner, Runnable task)
+    {
+        Deque<Runnable> queue = queues.get(owner);
+        if (queue == null)
+        {
+            queue = new ArrayDeque<>();
+            queues.put(owner, queue);
+            readyOwners.add(owner);
+        }
+        queue.add(task);
+
+        dispatch();
+    }
+
+
+    /**
+     * Drops the queued tasks of the given owner, e.g. when its project is
+     * closed. Running tasks are left to finish.
+     */
+    public synchronized void release(Object owner)
+    {
+        if (queues.remove(owner) != null)
+        {
+            readyOwners.remove(owner);
+        }
+    }
+
+
+    // Small utility methods.
+
+    private synchronized void dispatch()
+    {
+        while (runningCount < maxRunningCount && !readyOwners.isEmpty())
+        {
+            Object          owner = readyOwners.poll();
+            Deque<Runnable> queue = queues.get(owner);
+            Runnable        task  = queue.poll();
+
+            // The owner goes to the back of the line if it has more tasks.
+            if (queue.isEmpty())
+            {
+                queues.remove(owner);
+            }
+            else
+            {
+                readyOwners.add(owner);
+            }
+
+            runningCount++;
+            executor.execute(() -> run(task));
+        }
+    }
+
+
+    private void run(Runnable task)
+    {
+        try
+        {
+            task.run();
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                runningCount--;
+                dispatch();
+            }
+        }
+    }
+}
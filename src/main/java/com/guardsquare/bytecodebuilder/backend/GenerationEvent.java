@@ -0,0 +1,67 @@
+package com.guardsquare.bytecodebuilder.backend;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder event for a run of the generation pipeline. It only costs
+ * anything while a recording that enables it is running.
+ */
+@Name("com.guardsquare.bytecodebuilder.Generation")
+@Label("Composer Code Generation")
+@Category("Bytecode Builder")
+class GenerationEvent extends Event
+{
+    @Label("Compile Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long compileTime;
+
+    @Label("Parse Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long parseTime;
+
+    @Label("Analyze Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long analyzeTime;
+
+    @Label("Print Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long printTime;
+
+    @Label("Instructions")
+    long instructions;
+
+    @Label("Labels")
+    long labels;
+
+    @Label("Exception Entries")
+    long exceptionEntries;
+
+    @Label("Class Bytes")
+    @DataAmount
+    long classBytes;
+
+    @Label("Cached")
+    boolean cached;
+
+
+    /**
+     * Copies the given statistics into the event.
+     */
+    void set(PipelineStats stats)
+    {
+        compileTime      = stats.getStageNanos(PipelineStats.COMPILE);
+        parseTime        = stats.getStageNanos(PipelineStats.PARSE);
+        analyzeTime      = stats.getStageNanos(PipelineStats.ANALYZE);
+        printTime        = stats.getStageNanos(PipelineStats.PRINT);
+        instructions     = stats.getInstructionCount();
+        labels           = stats.getLabelCount();
+        exceptionEntries = stats.getExceptionCount();
+        classBytes       = stats.getClassBytes();
+        cached           = stats.isSourceCacheHit();
+    }
+}
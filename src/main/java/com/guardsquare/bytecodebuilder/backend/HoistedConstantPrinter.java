@@ -0,0 +1,52 @@
+package com.guardsquare.bytecodebuilder.backend;
+
+import proguard.classfile.Clazz;
+import proguard.classfile.Method;
+import proguard.classfile.attribute.CodeAttribute;
+import proguard.classfile.instruction.ConstantInstruction;
+import proguard.classfile.instruction.Instruction;
+import proguard.classfile.instruction.visitor.InstructionVisitor;
+
+import java.util.Arrays;
+
+import static com.guardsquare.bytecodebuilder.backend.CodeUtil.NEW_LINE;
+
+/**
+ * Declares a local for each distinct class, string, field and method constant
+ * that the visited instructions refer to, holding its index in the target
+ * class's constant pool. The generated code then only searches the constant
+ * pool once per constant, instead of at every instruction that uses it.
+ */
+public class HoistedConstantPrinter implements InstructionVisitor {
+    private final StringBuilder builder;
+    private final ConstantArgumentCache constantArgumentCache;
+    private boolean[] declared = new boolean[0];
+
+    public HoistedConstantPrinter(StringBuilder builder, ConstantArgumentCache constantArgumentCache) {
+        this.builder = builder;
+        this.constantArgumentCache = constantArgumentCache;
+    }
+
+    public static void appendLocalName(StringBuilder builder, int constantIndex) {
+        builder.append("constant").append(constantIndex);
+    }
+
+    @Override
+    public void visitAnyInstruction(Clazz clazz, Method method, CodeAttribute codeAttribute, int offset, Instruction instruction) {}
+
+    @Override
+    public void visitConstantInstruction(Clazz clazz, Method method, CodeAttribute codeAttribute, int offset, ConstantInstruction constantInstruction) {
+        int constantIndex = constantInstruction.constantIndex;
+        if (declared.length <= constantIndex) {
+            declared = Arrays.copyOf(declared, Math.max(constantIndex + 1, declared.length * 2));
+        }
+
+        ConstantArgumentCache.Argument argument = constantArgumentCache.getArgument(clazz, constantIndex);
+        if (argument.isHoistable() && !declared[constantIndex]) {
+            declared[constantIndex] = true;
+            builder.append("int ");
+            appendLocalName(builder, constantIndex);
+            builder.append(" = ").append(argument.hoistedExpression).append(';').append(NEW_LINE);
+        }
+    }
+}
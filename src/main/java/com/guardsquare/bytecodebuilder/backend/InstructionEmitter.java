@@ -0,0 +1,265 @@
+package com.guardsquare.bytecodebuilder.backend;
+
+import proguard.classfile.Clazz;
+import proguard.classfile.Method;
+import proguard.classfile.attribute.CodeAttribute;
+import proguard.classfile.instruction.*;
+import proguard.classfile.instruction.visitor.InstructionVisitor;
+
+/**
+ * Turns each instruction it visits into a call of a composer method, with
+ * its name and arguments, and passes the call on to a target.
+ *
+ * {@link InstructionPrinter} prints the calls as composer code, and
+ * {@link ComposerReplayer} makes the same calls on a real composer, so the
+ * round-trip check tests exactly what is printed.
+ *
+ * Each kind of argument list has a method of its own, with primitive
+ * arguments, so passing on a call doesn't allocate anything. Labels are
+ * passed as the offsets of their targets, and hoisted constants as the
+ * indices of the constants in the source class.
+ */
+public abstract class InstructionEmitter implements InstructionVisitor
+{
+    // The composer method names, by opcode.
+    private static final String[] COMPOSER_NAMES = new String[256];
+
+    // The names of the ldc methods that take a constant pool index, like ldc_.
+    private static final String[] INDEX_COMPOSER_NAMES = new String[256];
+
+    static
+    {
+        for (int opcode = 0; opcode < Instruction.NAMES.length; opcode++)
+        {
+            COMPOSER_NAMES[opcode] = computeName((byte)opcode);
+        }
+        INDEX_COMPOSER_NAMES[Instruction.OP_LDC]    = COMPOSER_NAMES[Instruction.OP_LDC]    + '_';
+        INDEX_COMPOSER_NAMES[Instruction.OP_LDC_W]  = COMPOSER_NAMES[Instruction.OP_LDC_W]  + '_';
+        INDEX_COMPOSER_NAMES[Instruction.OP_LDC2_W] = COMPOSER_NAMES[Instruction.OP_LDC2_W] + '_';
+    }
+
+    private final ConstantArgumentCache constantArgumentCache;
+    private final boolean               hoistConstants;
+
+
+    /**
+     * Creates a new emitter that, if specified, refers to hoistable constants
+     * by the locals that {@link HoistedConstantPrinter} declares for them.
+     */
+    protected InstructionEmitter(ConstantArgumentCache constantArgumentCache, boolean hoistConstants)
+    {
+        this.constantArgumentCache = constantArgumentCache;
+        this.hoistConstants        = hoistConstants;
+    }
+
+
+    /**
+     * Emits a call without arguments, for the given instruction at the given
+     * offset.
+     */
+    protected abstract void emit(Clazz clazz, int offset, Instruction instruction, String name);
+
+
+    /**
+     * Emits a call with an int literal.
+     */
+    protected abstract void emit(Clazz clazz, int offset, Instruction instruction, String name, int value);
+
+
+    /**
+     * Emits a call with two int literals.
+     */
+    protected abstract void emit(Clazz clazz, int offset, Instruction instruction, String name, int value1, int value2);
+
+
+    /**
+     * Emits a call with the rendered arguments of a constant.
+     */
+    protected abstract void emitConstant(Clazz clazz, int offset, Instruction instruction, String name, ConstantArgumentCache.Argument argument);
+
+
+    /**
+     * Emits a call with the rendered arguments of a constant, followed by an
+     * int literal.
+     */
+    protected abstract void emitConstant(Clazz clazz, int offset, Instruction instruction, String name, ConstantArgumentCache.Argument argument, int value);
+
+
+    /**
+     * Emits a call with the local that holds the index of the given constant
+     * in the target class.
+     */
+    protected abstract void emitHoistedConstant(Clazz clazz, int offset, Instruction instruction, String name, int constantIndex);
+
+
+    /**
+     * Emits a call with the local that holds the index of the given constant
+     * in the target class, followed by an int literal.
+     */
+    protected abstract void emitHoistedConstant(Clazz clazz, int offset, Instruction instruction, String name, int constantIndex, int value);
+
+
+    /**
+     * Emits a call with the label at the given target offset.
+     */
+    protected abstract void emitBranch(Clazz clazz, int offset, Instruction instruction, String name, int targetOffset);
+
+
+    /**
+     * Emits a tableswitch call with the labels of the default and jump
+     * targets, and the range of the cases.
+     */
+    protected abstract void emitTableSwitch(Clazz clazz, int offset, TableSwitchInstruction tableSwitchInstruction);
+
+
+    /**
+     * Emits a lookupswitch call with the labels of the default and jump
+     * targets, and the array of the cases.
+     */
+    protected abstract void emitLookUpSwitch(Clazz clazz, int offset, LookUpSwitchInstruction lookUpSwitchInstruction);
+
+
+    // Implementations for InstructionVisitor.
+
+    @Override
+    public void visitSimpleInstruction(Clazz clazz, Method method, CodeAttribute codeAttribute, int offset, SimpleInstruction simpleInstruction)
+    {
+        String name = getName(simpleInstruction);
+
+        // Smaller constants are implied by the opcode, like in iconst_5.
+        if (simpleInstruction.constant > 5)
+        {
+            emit(clazz, offset, simpleInstruction, name, simpleInstruction.constant);
+        }
+        else
+        {
+            emit(clazz, offset, simpleInstruction, name);
+        }
+    }
+
+
+    @Override
+    public void visitVariableInstruction(Clazz clazz, Method method, CodeAttribute codeAttribute, int offset, VariableInstruction variableInstruction)
+    {
+        String name = getName(variableInstruction);
+
+        // Iinc has no short forms, so it always needs the variable index.
+        // Smaller indices are implied by the opcode, like in iload_3.
+        if (variableInstruction.opcode == Instruction.OP_IINC)
+        {
+            emit(clazz, offset, variableInstruction, name, variableInstruction.variableIndex, variableInstruction.constant);
+        }
+        else if (variableInstruction.variableIndex > 3)
+        {
+            emit(clazz, offset, variableInstruction, name, variableInstruction.variableIndex);
+        }
+        else
+        {
+            emit(clazz, offset, variableInstruction, name);
+        }
+    }
+
+
+    @Override
+    public void visitConstantInstruction(Clazz clazz, Method method, CodeAttribute codeAttribute, int offset, ConstantInstruction constantInstruction)
+    {
+        ConstantArgumentCache.Argument argument = constantArgumentCache.getArgument(clazz, constantInstruction.constantIndex);
+        String                         name     = getName(constantInstruction);
+
+        if (hoistConstants && argument.isHoistable())
+        {
+            // Refer to the constant pool index, computed before the code fragment.
+            if (name.startsWith("ldc"))
+            {
+                name = INDEX_COMPOSER_NAMES[constantInstruction.opcode & 0xff];
+            }
+            // Invokeinterface and multianewarray also take their count and
+            // dimensions operands.
+            if (constantInstruction.opcode == Instruction.OP_INVOKEINTERFACE ||
+                constantInstruction.opcode == Instruction.OP_MULTIANEWARRAY)
+            {
+                emitHoistedConstant(clazz, offset, constantInstruction, name, constantInstruction.constantIndex, constantInstruction.constant);
+            }
+            else
+            {
+                emitHoistedConstant(clazz, offset, constantInstruction, name, constantInstruction.constantIndex);
+            }
+            return;
+        }
+
+        if (argument.isClassString && name.startsWith("ldc"))
+        {
+            name = INDEX_COMPOSER_NAMES[constantInstruction.opcode & 0xff];
+        }
+
+        // The composer computes the count operand of invokeinterface from
+        // the descriptor, but not the dimensions operand of multianewarray.
+        if (constantInstruction.opcode == Instruction.OP_MULTIANEWARRAY)
+        {
+            emitConstant(clazz, offset, constantInstruction, name, argument, constantInstruction.constant);
+        }
+        else
+        {
+            emitConstant(clazz, offset, constantInstruction, name, argument);
+        }
+    }
+
+
+    @Override
+    public void visitBranchInstruction(Clazz clazz, Method method, CodeAttribute codeAttribute, int offset, BranchInstruction branchInstruction)
+    {
+        emitBranch(clazz, offset, branchInstruction, getName(branchInstruction), offset + branchInstruction.branchOffset);
+    }
+
+
+    @Override
+    public void visitTableSwitchInstruction(Clazz clazz, Method method, CodeAttribute codeAttribute, int offset, TableSwitchInstruction tableSwitchInstruction)
+    {
+        emitTableSwitch(clazz, offset, tableSwitchInstruction);
+    }
+
+
+    @Override
+    public void visitLookUpSwitchInstruction(Clazz clazz, Method method, CodeAttribute codeAttribute, int offset, LookUpSwitchInstruction lookUpSwitchInstruction)
+    {
+        emitLookUpSwitch(clazz, offset, lookUpSwitchInstruction);
+    }
+
+
+    /**
+     * Returns the name of the composer method for the given instruction.
+     */
+    static String getName(Instruction instruction)
+    {
+        return COMPOSER_NAMES[instruction.opcode & 0xff];
+    }
+
+
+    // Small utility methods.
+
+    private static String computeName(byte opcode)
+    {
+        String name = Instruction.NAMES[opcode & 0xff];
+        switch (opcode)
+        {
+            case Instruction.OP_RET:
+            case Instruction.OP_RETURN:
+            case Instruction.OP_GOTO:
+            case Instruction.OP_GOTO_W:
+            case Instruction.OP_NEW:
+            case Instruction.OP_INSTANCEOF:
+                return name + "_";
+            case Instruction.OP_IFACMPEQ:
+            case Instruction.OP_IFACMPNE:
+            case Instruction.OP_IFICMPEQ:
+            case Instruction.OP_IFICMPGE:
+            case Instruction.OP_IFICMPGT:
+            case Instruction.OP_IFICMPLE:
+            case Instruction.OP_IFICMPLT:
+            case Instruction.OP_IFICMPNE:
+                return name.replace("_", "");
+            default:
+                return name;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.guardsquare.bytecodebuilder.backend;
+
+import proguard.classfile.Clazz;
+import proguard.classfile.Method;
+import proguard.classfile.attribute.CodeAttribute;
+import proguard.classfile.instruction.BranchInstruction;
+import proguard.classfile.instruction.Instruction;
+import proguard.classfile.instruction.SwitchInstruction;
+import proguard.classfile.instruction.visitor.InstructionVisitor;
+
+import java.util.Arrays;
+
+/**
+ * Offset-ordered table of the instructions of a code attribute.
+ *
+ * The code is decoded once, in a single pass that also collects the targets
+ * of branch and switch instructions. The label and instruction printers then
+ * all work from this table instead of decoding the code again.
+ */
+public class InstructionTable implements InstructionVisitor
+{
+    private int[]         offsets       = new int[0];
+    private Instruction[] instructions  = new Instruction[0];
+    private boolean[]     branchTargets = new boolean[1];
+    private int           size;
+
+
+    /**
+     * Fills the table with the instructions of the given code attribute.
+     */
+    public void build(Clazz clazz, Method method, CodeAttribute codeAttribute)
+    {
+        int codeLength = codeAttribute.u4codeLength;
+        if (offsets.length < codeLength)
+        {
+            // There can't be more instructions than bytes.
+            offsets      = new int[codeLength];
+            instructions = new Instruction[codeLength];
+        }
+        else
+        {
+            Arrays.fill(instructions, null);
+        }
+        branchTargets = new boolean[codeLength + 1];
+        size          = 0;
+
+        codeAttribute.instructionsAccept(clazz, method, this);
+    }
+
+
+    public int codeLength()
+    {
+        return branchTargets.length - 1;
+    }
+
+
+    public int size()
+    {
+        return size;
+    }
+
+
+    public int offset(int index)
+    {
+        return offsets[index];
+    }
+
+
+    public Instruction instruction(int index)
+    {
+        return instructions[index];
+    }
+
+
+    public boolean isBranchTarget(int offset)
+    {
+        return branchTargets[offset];
+    }
+
+
+    /**
+     * Lets the given visitor visit all instructions, in offset order,
+     * without decoding them again.
+     */
+    public void instructionsAccept(Clazz clazz, Method method, CodeAttribute codeAttribute, InstructionVisitor instructionVisitor)
+    {
+        for (int index = 0; index < size; index++)
+        {
+            instructions[index].accept(clazz, method, codeAttribute, offsets[index], instructionVisitor);
+        }
+    }
+
+
+    // Implementations for InstructionVisitor.
+
+    @Override
+    public void visitAnyInstruction(Clazz clazz, Method method, CodeAttribute codeAttribute, int offset, Instruction instruction)
+    {
+        offsets[size]      = offset;
+        instructions[size] = instruction;
+        size++;
+    }
+
+
+    @Override
+    public void visitBranchInstruction(Clazz clazz, Method method, CodeAttribute codeAttribute, int offset, BranchInstruction branchInstruction)
+    {
+        branchTargets[offset + branchInstruction.branchOffset] = true;
+
+        visitAnyInstruction(clazz, method, codeAttribute, offset, branchInstruction);
+    }
+
+
+    @Override
+    public void visitAnySwitchInstruction(Clazz clazz, Method method, CodeAttribute codeAttribute, int offset, SwitchInstruction switchInstruction)
+    {
+        branchTargets[offset + switchInstruction.defaultOffset] = true;
+        for (int jumpOffset : switchInstruction.jumpOffsets)
+        {
+            branchTargets[offset + jumpOffset] = true;
+        }
+
+        visitAnyInstruction(clazz, method, codeAttribute, offset, switchInstruction);
+    }
+}
@@ -1,38 +1,94 @@
 package com.guardsquare.bytecodebuilder.backend;
 
-import proguard.classfile.Clazz;
-import proguard.classfile.Method;
-import proguard.classfile.attribute.CodeAttribute;
-import proguard.classfile.instruction.Instruction;
-import proguard.classfile.instruction.visitor.InstructionVisitor;
-import proguard.classfile.util.BranchTargetFinder;
-
-import java.io.PrintWriter;
-import java.util.HashMap;
-import java.util.Map;
-
-public class LabelPrinter implements InstructionVisitor {
-    private final PrintWriter printWriter;
-    private final BranchTargetFinder targetFinder;
-    private final Map<Integer, String> labelNames = new HashMap<>();
-
-    public LabelPrinter(PrintWriter printWriter, BranchTargetFinder targetFinder) {
-        this.printWriter = printWriter;
-        this.targetFinder = targetFinder;
+import static com.guardsquare.bytecodebuilder.backend.CodeUtil.NEW_LINE;
+
+/**
+ * Creates and prints the labels of a code attribute.
+ *
+ * There is at most one label per offset, however many branches and exception
+ * table entries refer to it, and only offsets that the printed code refers to
+ * get a label. Labels are named after the most specific thing they mark and
+ * numbered in offset order.
+ */
+public class LabelPrinter {
+    public static final int BRANCH_TARGET   = 1;
+    public static final int TRY_END         = 2;
+    public static final int TRY_START       = 4;
+    public static final int HANDLER         = 8;
+
+    private static final int[]    ROLES    = { HANDLER, TRY_START, TRY_END, BRANCH_TARGET };
+    private static final String[] PREFIXES = { "HANDLER_START_", "TRY_START_", "TRY_END_", "label" };
+
+    private final StringBuilder builder;
+    private final int[] roles;
+    private final int[] labelNumbers;
+    private int labelCount;
+
+    public LabelPrinter(StringBuilder builder, InstructionTable instructionTable) {
+        this.builder = builder;
+
+        // The end of a try block may be the end of the code.
+        int codeLength = instructionTable.codeLength();
+        this.roles = new int[codeLength + 1];
+        this.labelNumbers = new int[codeLength + 1];
+
+        for (int offset = 0; offset < codeLength; offset++) {
+            if (instructionTable.isBranchTarget(offset)) {
+                this.roles[offset] = BRANCH_TARGET;
+            }
+        }
+    }
+
+    /**
+     * Makes sure there is a label at the given offset, for the given role.
+     */
+    public void addLabel(int offset, int role) {
+        roles[offset] |= role;
+    }
+
+    /**
+     * Numbers the labels and prints their creation statements.
+     */
+    public void printLabelCreationStatements() {
+        int[] counters = new int[ROLES.length];
+        for (int offset = 0; offset < roles.length; offset++) {
+            if (roles[offset] != 0) {
+                labelNumbers[offset] = counters[prefixIndex(offset)]++;
+                labelCount++;
+                builder.append("Label ");
+                appendLabelName(builder, offset);
+                builder.append(" = composer.createLabel();").append(NEW_LINE);
+            }
+        }
     }
 
-    @Override
-    public void visitAnyInstruction(Clazz clazz, Method method, CodeAttribute codeAttribute, int offset, Instruction instruction) {
-        if (this.targetFinder.isBranchTarget(offset)) {
-            this.printWriter.println("Label " + getLabelName(offset) + " = composer.createLabel();");
+    /**
+     * Returns the number of labels printed by {@link #printLabelCreationStatements()}.
+     */
+    public int getLabelCount() {
+        return labelCount;
+    }
+
+    /**
+     * Prints the label at the given offset, if there is any.
+     */
+    public void printLabel(int offset) {
+        if (roles[offset] != 0) {
+            builder.append("        .label(");
+            appendLabelName(builder, offset);
+            builder.append(')').append(NEW_LINE);
         }
     }
 
-    public String getLabelName(int offset) {
-        String label = "label" + labelNames.size();
-        if (!labelNames.containsKey(offset)) {
-            labelNames.put(offset, label);
+    public void appendLabelName(StringBuilder builder, int offset) {
+        builder.append(PREFIXES[prefixIndex(offset)]).append(labelNumbers[offset]);
+    }
+
+    private int prefixIndex(int offset) {
+        int index = 0;
+        while ((roles[offset] & ROLES[index]) == 0) {
+            index++;
         }
-        return labelNames.get(offset);
+        return index;
     }
 }
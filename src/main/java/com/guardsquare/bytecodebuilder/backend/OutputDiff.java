@@ -0,0 +1,70 @@
+package com.guardsquare.bytecodebuilder.backend;
+
+/**
+ * The range of whole lines in which two versions of the output differ.
+ *
+ * The old text between {@link #start} and {@link #oldEnd} has to be
+ * replaced by the new text between {@link #start} and {@link #newEnd}.
+ * Everything before and after is the same, so a document only needs to
+ * update that range, keeping the layout of the unchanged lines.
+ */
+public class OutputDiff
+{
+    public final int start;
+    public final int oldEnd;
+    public final int newEnd;
+
+
+    private OutputDiff(int start, int oldEnd, int newEnd)
+    {
+        this.start  = start;
+        this.oldEnd = oldEnd;
+        this.newEnd = newEnd;
+    }
+
+
+    /**
+     * Returns the changed range between the given texts.
+     */
+    public static OutputDiff compute(CharSequence oldText, CharSequence newText)
+    {
+        int oldLength = oldText.length();
+        int newLength = newText.length();
+        int maxLength = Math.min(oldLength, newLength);
+
+        // Find the common prefix, back to the start of its last line.
+        int prefix = 0;
+        while (prefix < maxLength && oldText.charAt(prefix) == newText.charAt(prefix))
+        {
+            prefix++;
+        }
+        while (prefix > 0 && oldText.charAt(prefix - 1) != '\n')
+        {
+            prefix--;
+        }
+
+        // Find the common suffix that doesn't overlap the prefix, forward to
+        // the start of its first line.
+        int suffix = 0;
+        while (suffix < maxLength - prefix &&
+               oldText.charAt(oldLength - suffix - 1) == newText.charAt(newLength - suffix - 1))
+        {
+            suffix++;
+        }
+        while (suffix > 0 && suffix < oldLength && oldText.charAt(oldLength - suffix - 1) != '\n')
+        {
+            suffix--;
+        }
+
+        return new OutputDiff(prefix, oldLength - suffix, newLength - suffix);
+    }
+
+
+    /**
+     * Returns whether the texts are the same.
+     */
+    public boolean isEmpty()
+    {
+        return start == oldEnd && start == newEnd;
+    }
+}
@@ -0,0 +1,24 @@
+package com.guardsquare.bytecodebuilder.backend;
+
+/**
+ * Receives generated code chunk by chunk, e.g. one method at a time, so the
+ * whole output never has to be in memory at once.
+ */
+public interface OutputSink
+{
+    /**
+     * Writes the given chunk. The chunk may be reused once this method
+     * returns, so a sink copies what it keeps.
+     */
+    void write(CharSequence chunk);
+
+
+    /**
+     * Returns whether the sink doesn't accept any more output, so the
+     * generator can stop early.
+     */
+    default boolean isFull()
+    {
+        return false;
+    }
+}
@@ -0,0 +1,88 @@
+package com.guardsquare.bytecodebuilder.backend;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rolling histograms of the stage times of the most recent pipeline runs.
+ *
+ * Runs whose whole result came from the cache are only counted, since they
+ * say nothing about the stages.
+ */
+public class PipelineMetrics
+{
+    private static final int WINDOW_SIZE = 128;
+
+    private final long[][] samples = new long[PipelineStats.STAGE_COUNT][WINDOW_SIZE];
+    private int            sampleCount;
+    private long           runCount;
+    private long           cachedRunCount;
+
+
+    /**
+     * Adds the times of the given run and returns the updated {@link #summary()}.
+     */
+    public synchronized String record(PipelineStats stats)
+    {
+        runCount++;
+        if (stats.isSourceCacheHit())
+        {
+            cachedRunCount++;
+        }
+        else
+        {
+            int index = sampleCount++ % WINDOW_SIZE;
+            for (int stage = 0; stage < PipelineStats.STAGE_COUNT; stage++)
+            {
+                samples[stage][index] = stats.getStageNanos(stage);
+            }
+        }
+
+        return summary();
+    }
+
+
+    /**
+     * Returns the given percentile of the times of the given stage, over the
+     * recent runs, in milliseconds, or -1 if there haven't been any runs.
+     */
+    public synchronized long percentileMillis(int stage, int percentile)
+    {
+        int count = Math.min(sampleCount, WINDOW_SIZE);
+        if (count == 0)
+        {
+            return -1L;
+        }
+
+        long[] sorted = Arrays.copyOf(samples[stage], count);
+        Arrays.sort(sorted);
+
+        // Nearest rank.
+        int rank = (int)Math.ceil(percentile / 100.0 * count);
+        return TimeUnit.NANOSECONDS.toMillis(sorted[Math.max(rank, 1) - 1]);
+    }
+
+
+    /**
+     * Returns a summary of the p50 and p95 times of all stages.
+     */
+    public synchronized String summary()
+    {
+        StringBuilder builder = new StringBuilder()
+            .append(runCount).append(" runs, ")
+            .append(cachedRunCount).append(" cached; p50/p95 over the last ")
+            .append(Math.min(sampleCount, WINDOW_SIZE)).append(": ");
+
+        for (int stage = 0; stage < PipelineStats.STAGE_COUNT; stage++)
+        {
+            if (stage > 0)
+            {
+                builder.append(", ");
+            }
+            builder.append(PipelineStats.getStageName(stage)).append(' ')
+                   .append(percentileMillis(stage, 50)).append('/')
+                   .append(percentileMillis(stage, 95)).append(" ms");
+        }
+        return builder.toString();
+    }
+}
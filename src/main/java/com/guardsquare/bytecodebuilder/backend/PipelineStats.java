@@ -0,0 +1,166 @@
+package com.guardsquare.bytecodebuilder.backend;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timers and counters of a single run of the generation pipeline.
+ *
+ * Methods are analyzed and printed in parallel, so the times of those stages
+ * are summed over all threads. The times are measured with the monotonic
+ * {@link System#nanoTime()} clock.
+ */
+public class PipelineStats
+{
+    public static final int COMPILE     = 0;
+    public static final int PARSE       = 1;
+    public static final int ANALYZE     = 2;
+    public static final int PRINT       = 3;
+    public static final int TOTAL       = 4;
+    public static final int STAGE_COUNT = 5;
+
+    private static final String[] STAGE_NAMES = { "compile", "parse", "analyze", "print", "total" };
+
+    private final AtomicLongArray stageNanos       = new AtomicLongArray(STAGE_COUNT);
+    private final LongAdder       instructionCount = new LongAdder();
+    private final LongAdder       labelCount       = new LongAdder();
+    private final LongAdder       exceptionCount   = new LongAdder();
+    private volatile long         classBytes;
+    private volatile boolean      sourceCacheHit;
+    private volatile boolean      bytecodeCacheHit;
+
+
+    /**
+     * Returns the name of the given stage.
+     */
+    public static String getStageName(int stage)
+    {
+        return STAGE_NAMES[stage];
+    }
+
+
+    /**
+     * Adds the time since the given start time, from {@link System#nanoTime()},
+     * to the given stage.
+     */
+    public void stop(int stage, long startNanos)
+    {
+        stageNanos.addAndGet(stage, System.nanoTime() - startNanos);
+    }
+
+
+    public long getStageNanos(int stage)
+    {
+        return stageNanos.get(stage);
+    }
+
+
+    public void addInstructions(int count)
+    {
+        instructionCount.add(count);
+    }
+
+
+    public long getInstructionCount()
+    {
+        return instructionCount.sum();
+    }
+
+
+    public void addLabels(int count)
+    {
+        labelCount.add(count);
+    }
+
+
+    public long getLabelCount()
+    {
+        return labelCount.sum();
+    }
+
+
+    public void addExceptions(int count)
+    {
+        exceptionCount.add(count);
+    }
+
+
+    public long getExceptionCount()
+    {
+        return exceptionCount.sum();
+    }
+
+
+    public void setClassBytes(long classBytes)
+    {
+        this.classBytes = classBytes;
+    }
+
+
+    public long getClassBytes()
+    {
+        return classBytes;
+    }
+
+
+    public void setSourceCacheHit(boolean sourceCacheHit)
+    {
+        this.sourceCacheHit = sourceCacheHit;
+    }
+
+
+    public boolean isSourceCacheHit()
+    {
+        return sourceCacheHit;
+    }
+
+
+    public void setBytecodeCacheHit(boolean bytecodeCacheHit)
+    {
+        this.bytecodeCacheHit = bytecodeCacheHit;
+    }
+
+
+    public boolean isBytecodeCacheHit()
+    {
+        return bytecodeCacheHit;
+    }
+
+
+    /**
+     * Returns a one-line breakdown, like "compile 35 ms, parse 1 ms, ...".
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder();
+        builder.append(TimeUnit.NANOSECONDS.toMillis(getStageNanos(TOTAL))).append(" ms");
+        if (sourceCacheHit)
+        {
+            return builder.append(" (cached)").toString();
+        }
+
+        builder.append(": ");
+        for (int stage = COMPILE; stage <= PRINT; stage++)
+        {
+            if (stage > COMPILE)
+            {
+                builder.append(", ");
+            }
+            builder.append(STAGE_NAMES[stage]).append(' ')
+                   .append(TimeUnit.NANOSECONDS.toMillis(getStageNanos(stage))).append(" ms");
+        }
+        if (bytecodeCacheHit)
+        {
+            builder.append(" (printing cached)");
+        }
+
+        return builder.append("; ")
+                      .append(getInstructionCount()).append(" instructions, ")
+                      .append(getLabelCount()).append(" labels, ")
+                      .append(getExceptionCount()).append(" exception entries, ")
+                      .append(classBytes).append(" bytes of classes")
+                      .toString();
+    }
+}
@@ -0,0 +1,87 @@
+package com.guardsquare.bytecodebuilder.backend;
+
+import java.util.concurrent.Executor;
+import java.util.function.BooleanSupplier;
+
+/**
+ * The output of the tool window for a version of the snippet: either the
+ * composer code, or the syntax errors that kept it from being compiled.
+ */
+public class Preview
+{
+    public final String        text;
+    public final String        syntaxErrors;
+    public final PipelineStats stats;
+
+
+    private Preview(String text, String syntaxErrors, PipelineStats stats)
+    {
+        this.text         = text;
+        this.syntaxErrors = syntaxErrors;
+        this.stats        = stats;
+    }
+
+
+    /**
+     * Generates the preview of the given source. Most edits in the middle of
+     * typing are syntactically invalid, so the source is only compiled if it
+     * parses. The computation is aborted with a CancellationException as soon
+     * as the given supplier reports that it has been cancelled.
+     */
+    public static Preview generate(CompilerBackend compilationService,
+                                   ResultCache     resultCache,
+                                   String          javaCode,
+                                   String          customClassPath,
+                                   boolean         hoistConstants,
+                                   BooleanSupplier cancelled,
+                                   long            maxChars)
+    {
+        return generate(compilationService, resultCache, javaCode, customClassPath, hoistConstants, cancelled, maxChars, null);
+    }
+
+
+    /**
+     * Generates the preview of the given source, like above, printing the
+     * methods on the given executor as well, if any.
+     */
+    public static Preview generate(CompilerBackend compilationService,
+                                   ResultCache     resultCache,
+                                   String          javaCode,
+                                   String          customClassPath,
+                                   boolean         hoistConstants,
+                                   BooleanSupplier cancelled,
+                                   long            maxChars,
+                                   Executor        printExecutor)
+    {
+        PipelineStats stats = new PipelineStats();
+
+        String syntaxErrors = CodeUtil.getSyntaxErrors(compilationService, javaCode, customClassPath, cancelled);
+        if (syntaxErrors != null)
+        {
+            return new Preview(null, syntaxErrors, stats);
+        }
+
+        String text = CodeUtil.getProGuardInstructions(compilationService,
+                                                       resultCache,
+                                                       javaCode,
+                                                       customClassPath,
+                                                       hoistConstants,
+                                                       cancelled,
+                                                       stats,
+                                                       maxChars,
+                                                       printExecutor);
+
+        return new Preview(text, null, stats);
+    }
+
+
+    /**
+     * Returns whether the snippet was compiled for this preview, rather than
+     * stopped at its syntax errors or served from the source cache. Only
+     * such previews tell how long an update takes.
+     */
+    public boolean isCompiled()
+    {
+        return syntaxErrors == null && !stats.isSourceCacheHit();
+    }
+}
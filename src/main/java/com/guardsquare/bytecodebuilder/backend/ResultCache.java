@@ -0,0 +1,311 @@
+package com.guardsquare.bytecodebuilder.backend;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Content-addressed cache for generated composer code.
+ *
+ * The first tier maps a hash of the normalized source, a fingerprint of the
+ * classpath roots and a version of their directories to the complete output, so undo/redo or reopening the tool
+ * window doesn't recompile anything. The second tier maps a hash of the
+ * compiled class files to the printed instructions, so edits that only touch
+ * comments or whitespace skip parsing and printing.
+ *
+ * Both tiers are LRU maps bounded by the approximate memory their strings take.
+ *
+ * Since the keys include the class path, one cache can be shared by all
+ * projects. Identical requests that run at the same time, e.g. from two
+ * projects, are computed only once.
+ */
+public class ResultCache
+{
+    private static final long   DEFAULT_MAX_BYTES   = 16L * 1024L * 1024L;
+    private static final String JAVA_CLASS_PATH_KEY = fingerprint(System.getProperty("java.class.path"));
+
+    private final LruMap sourceResults;
+    private final LruMap bytecodeResults;
+
+    // The first-tier computations that are running.
+    private final Map<String, CompletableFuture<String>> runningComputations = new ConcurrentHashMap<>();
+
+
+    public ResultCache()
+    {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+
+    public ResultCache(long maxBytes)
+    {
+        sourceResults   = new LruMap(maxBytes / 2);
+        bytecodeResults = new LruMap(maxBytes / 2);
+    }
+
+
+    /**
+     * Returns the first-tier key for the given source and custom classpath.
+     * Only the roots of the class path are checked; changes inside its
+     * directories are tracked by the given version, e.g. from
+     * {@link ClassPathIndex#getDirectoryVersion()}.
+     */
+    public static String sourceKey(String javaCode, String customClassPath, String classPathVersion)
+    {
+        MessageDigest digest = newDigest();
+        digest.update(normalize(javaCode).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte)0);
+        digest.update(JAVA_CLASS_PATH_KEY.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte)0);
+        digest.update(fingerprint(customClassPath).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte)0);
+        digest.update(classPathVersion.getBytes(StandardCharsets.UTF_8));
+        return toHex(digest.digest());
+    }
+
+
+    /**
+     * Returns a digest to which the compiled class files can be fed, to
+     * compute a second-tier key with {@link #toHex(byte[])}.
+     */
+    public static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    public static String toHex(byte[] hash)
+    {
+        StringBuilder builder = new StringBuilder(hash.length * 2);
+        for (byte b : hash)
+        {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16))
+                   .append(Character.forDigit(b        & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+
+    public synchronized String getBySource(String sourceKey)
+    {
+        return sourceResults.get(sourceKey);
+    }
+
+
+    public synchronized void putBySource(String sourceKey, String result)
+    {
+        sourceResults.putWeighted(sourceKey, result);
+    }
+
+
+    /**
+     * Returns the first-tier result for the given key, computing and adding it
+     * with the given generator if necessary. If the same key is already being
+     * computed, this waits for that computation instead, until the given
+     * supplier reports that this request has been cancelled. If the other
+     * computation is cancelled, this one takes over.
+     */
+    public String getOrComputeBySource(String sourceKey, Supplier<String> generator, BooleanSupplier cancelled)
+    {
+        while (true)
+        {
+            String result = getBySource(sourceKey);
+            if (result != null)
+            {
+                return result;
+            }
+
+            CompletableFuture<String> computation        = new CompletableFuture<>();
+            CompletableFuture<String> runningComputation = runningComputations.putIfAbsent(sourceKey, computation);
+            if (runningComputation == null)
+            {
+                try
+                {
+                    result = generator.get();
+                    putBySource(sourceKey, result);
+                    computation.complete(result);
+                    return result;
+                }
+                catch (RuntimeException e)
+                {
+                    computation.completeExceptionally(e);
+                    throw e;
+                }
+                finally
+                {
+                    runningComputations.remove(sourceKey, computation);
+                }
+            }
+
+            result = await(runningComputation, cancelled);
+            if (result != null)
+            {
+                return result;
+            }
+        }
+    }
+
+
+    public synchronized String getByBytecode(String bytecodeKey)
+    {
+        return bytecodeResults.get(bytecodeKey);
+    }
+
+
+    public synchronized void putByBytecode(String bytecodeKey, String instructions)
+    {
+        bytecodeResults.putWeighted(bytecodeKey, instructions);
+    }
+
+
+    public synchronized void clear()
+    {
+        sourceResults.clear();
+        bytecodeResults.clear();
+    }
+
+
+    // Small utility methods.
+
+    /**
+     * Waits for the given computation and returns its result, or null if it
+     * failed or was cancelled.
+     */
+    private static String await(CompletableFuture<String> computation, BooleanSupplier cancelled)
+    {
+        while (true)
+        {
+            if (cancelled.getAsBoolean())
+            {
+                throw new CancellationException();
+            }
+
+            try
+            {
+                return computation.get(50L, TimeUnit.MILLISECONDS);
+            }
+            catch (TimeoutException e)
+            {
+                // Check whether this request has been cancelled in the meantime.
+            }
+            catch (ExecutionException e)
+            {
+                return null;
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new CancellationException();
+            }
+        }
+    }
+
+    /**
+     * Normalizes line separators and trailing whitespace, which don't affect
+     * the compiled code or the reported line numbers.
+     */
+    private static String normalize(String javaCode)
+    {
+        StringBuilder builder = new StringBuilder(javaCode.length());
+        for (String line : javaCode.split("\r\n|\r|\n", -1))
+        {
+            builder.append(line.stripTrailing()).append('\n');
+        }
+        return builder.toString();
+    }
+
+
+    /**
+     * Describes the given class path by the names, sizes and modification
+     * times of its entries, without descending into directories.
+     */
+    private static String fingerprint(String classPath)
+    {
+        StringBuilder builder = new StringBuilder();
+        if (classPath != null)
+        {
+            for (String entry : classPath.split(File.pathSeparator))
+            {
+                if (!entry.isEmpty())
+                {
+                    File file = new File(entry);
+                    builder.append(file.getPath())
+                           .append(':').append(file.length())
+                           .append(':').append(file.lastModified())
+                           .append(File.pathSeparatorChar);
+                }
+            }
+        }
+        return builder.toString();
+    }
+
+
+    /**
+     * Access-ordered map that evicts its eldest entries once the strings it
+     * holds exceed the given number of bytes.
+     */
+    private static class LruMap extends LinkedHashMap<String, String>
+    {
+        private final long maxBytes;
+        private long       bytes;
+
+
+        public LruMap(long maxBytes)
+        {
+            super(16, 0.75f, true);
+            this.maxBytes = maxBytes;
+        }
+
+
+        public void putWeighted(String key, String value)
+        {
+            String previous = put(key, value);
+            if (previous != null)
+            {
+                bytes -= weight(key, previous);
+            }
+            bytes += weight(key, value);
+
+            Iterator<Map.Entry<String, String>> iterator = entrySet().iterator();
+            while (bytes > maxBytes && iterator.hasNext())
+            {
+                Map.Entry<String, String> eldest = iterator.next();
+                bytes -= weight(eldest.getKey(), eldest.getValue());
+                iterator.remove();
+            }
+        }
+
+
+        @Override
+        public void clear()
+        {
+            super.clear();
+            bytes = 0L;
+        }
+
+
+        private static long weight(String key, String value)
+        {
+            return 2L * (key.length() + value.length()) + 64L;
+        }
+    }
+}
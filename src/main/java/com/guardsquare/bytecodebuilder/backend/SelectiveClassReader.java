@@ -0,0 +1,375 @@
+package com.guardsquare.bytecodebuilder.backend;
+
+import proguard.classfile.ProgramClass;
+import proguard.classfile.ProgramField;
+import proguard.classfile.ProgramMethod;
+import proguard.classfile.attribute.Attribute;
+import proguard.classfile.attribute.BootstrapMethodInfo;
+import proguard.classfile.attribute.BootstrapMethodsAttribute;
+import proguard.classfile.attribute.CodeAttribute;
+import proguard.classfile.attribute.ExceptionInfo;
+import proguard.classfile.constant.*;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a program class from a class file, keeping only what the printers
+ * need: the constant pool, the methods with their code and exception tables,
+ * and the bootstrap methods. Fields, the other attributes, and the
+ * attributes of the code are skipped without being decoded.
+ *
+ * The class file is read straight from a buffer, without copying it first.
+ */
+public class SelectiveClassReader
+{
+    private static final Attribute[] NO_ATTRIBUTES = new Attribute[0];
+
+
+    /**
+     * Reads the class file from the position of the given buffer to its limit.
+     */
+    public static ProgramClass read(ByteBuffer classFile)
+    {
+        ByteBuffer buffer = classFile.slice();
+
+        ProgramClass programClass = new ProgramClass();
+        programClass.u4magic   = buffer.getInt();
+        programClass.u4version = (buffer.getShort() & 0xffff) | (buffer.getShort() & 0xffff) << 16;
+
+        Constant[] constantPool = readConstantPool(buffer);
+        programClass.u2constantPoolCount = constantPool.length;
+        programClass.constantPool        = constantPool;
+
+        programClass.u2accessFlags = u2(buffer);
+        programClass.u2thisClass   = u2(buffer);
+        programClass.u2superClass  = u2(buffer);
+
+        int interfacesCount = u2(buffer);
+        programClass.u2interfacesCount = interfacesCount;
+        programClass.u2interfaces      = new int[interfacesCount];
+        for (int index = 0; index < interfacesCount; index++)
+        {
+            programClass.u2interfaces[index] = u2(buffer);
+        }
+
+        // Skip the fields.
+        int fieldsCount = u2(buffer);
+        for (int index = 0; index < fieldsCount; index++)
+        {
+            buffer.position(buffer.position() + 6);
+            skipAttributes(buffer);
+        }
+        programClass.u2fieldsCount = 0;
+        programClass.fields        = new ProgramField[0];
+
+        int methodsCount = u2(buffer);
+        programClass.u2methodsCount = methodsCount;
+        programClass.methods        = new ProgramMethod[methodsCount];
+        for (int index = 0; index < methodsCount; index++)
+        {
+            programClass.methods[index] = readMethod(buffer, constantPool);
+        }
+
+        // Keep only the bootstrap methods of the class attributes.
+        programClass.attributes = NO_ATTRIBUTES;
+        int attributesCount = u2(buffer);
+        for (int index = 0; index < attributesCount; index++)
+        {
+            int nameIndex = u2(buffer);
+            int length    = buffer.getInt();
+            if (isAttribute(constantPool, nameIndex, Attribute.BOOTSTRAP_METHODS))
+            {
+                programClass.attributes = new Attribute[] { readBootstrapMethods(buffer, nameIndex) };
+            }
+            else
+            {
+                buffer.position(buffer.position() + length);
+            }
+        }
+        programClass.u2attributesCount = programClass.attributes.length;
+
+        return programClass;
+    }
+
+
+    // Small utility methods.
+
+    private static Constant[] readConstantPool(ByteBuffer buffer)
+    {
+        int        count        = u2(buffer);
+        Constant[] constantPool = new Constant[count];
+
+        for (int index = 1; index < count; index++)
+        {
+            int tag = buffer.get() & 0xff;
+            switch (tag)
+            {
+                case Constant.UTF8:
+                    constantPool[index] = new Utf8Constant(readUtf8(buffer));
+                    break;
+
+                case Constant.INTEGER:
+                {
+                    IntegerConstant constant = new IntegerConstant();
+                    constant.u4value = buffer.getInt();
+                    constantPool[index] = constant;
+                    break;
+                }
+                case Constant.FLOAT:
+                {
+                    FloatConstant constant = new FloatConstant();
+                    constant.f4value = buffer.getFloat();
+                    constantPool[index] = constant;
+                    break;
+                }
+                case Constant.LONG:
+                {
+                    // Longs and doubles take up two entries.
+                    LongConstant constant = new LongConstant();
+                    constant.u8value = buffer.getLong();
+                    constantPool[index++] = constant;
+                    break;
+                }
+                case Constant.DOUBLE:
+                {
+                    DoubleConstant constant = new DoubleConstant();
+                    constant.f8value = buffer.getDouble();
+                    constantPool[index++] = constant;
+                    break;
+                }
+                case Constant.CLASS:
+                {
+                    ClassConstant constant = new ClassConstant();
+                    constant.u2nameIndex = u2(buffer);
+                    constantPool[index] = constant;
+                    break;
+                }
+                case Constant.STRING:
+                {
+                    StringConstant constant = new StringConstant();
+                    constant.u2stringIndex = u2(buffer);
+                    constantPool[index] = constant;
+                    break;
+                }
+                case Constant.FIELDREF:
+                    constantPool[index] = readRef(buffer, new FieldrefConstant());
+                    break;
+
+                case Constant.METHODREF:
+                    constantPool[index] = readRef(buffer, new MethodrefConstant());
+                    break;
+
+                case Constant.INTERFACE_METHODREF:
+                    constantPool[index] = readRef(buffer, new InterfaceMethodrefConstant());
+                    break;
+
+                case Constant.NAME_AND_TYPE:
+                {
+                    NameAndTypeConstant constant = new NameAndTypeConstant();
+                    constant.u2nameIndex       = u2(buffer);
+                    constant.u2descriptorIndex = u2(buffer);
+                    constantPool[index] = constant;
+                    break;
+                }
+                case Constant.METHOD_HANDLE:
+                {
+                    MethodHandleConstant constant = new MethodHandleConstant();
+                    constant.u1referenceKind  = buffer.get() & 0xff;
+                    constant.u2referenceIndex = u2(buffer);
+                    constantPool[index] = constant;
+                    break;
+                }
+                case Constant.METHOD_TYPE:
+                {
+                    MethodTypeConstant constant = new MethodTypeConstant();
+                    constant.u2descriptorIndex = u2(buffer);
+                    constantPool[index] = constant;
+                    break;
+                }
+                case Constant.DYNAMIC:
+                {
+                    DynamicConstant constant = new DynamicConstant();
+                    constant.u2bootstrapMethodAttributeIndex = u2(buffer);
+                    constant.u2nameAndTypeIndex              = u2(buffer);
+                    constantPool[index] = constant;
+                    break;
+                }
+                case Constant.INVOKE_DYNAMIC:
+                {
+                    InvokeDynamicConstant constant = new InvokeDynamicConstant();
+                    constant.u2bootstrapMethodAttributeIndex = u2(buffer);
+                    constant.u2nameAndTypeIndex              = u2(buffer);
+                    constantPool[index] = constant;
+                    break;
+                }
+                case Constant.MODULE:
+                {
+                    ModuleConstant constant = new ModuleConstant();
+                    constant.u2nameIndex = u2(buffer);
+                    constantPool[index] = constant;
+                    break;
+                }
+                case Constant.PACKAGE:
+                {
+                    PackageConstant constant = new PackageConstant();
+                    constant.u2nameIndex = u2(buffer);
+                    constantPool[index] = constant;
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown constant pool tag [" + tag + "] at index [" + index + "]");
+            }
+        }
+
+        return constantPool;
+    }
+
+
+    private static RefConstant readRef(ByteBuffer buffer, RefConstant constant)
+    {
+        constant.u2classIndex       = u2(buffer);
+        constant.u2nameAndTypeIndex = u2(buffer);
+        return constant;
+    }
+
+
+    private static ProgramMethod readMethod(ByteBuffer buffer, Constant[] constantPool)
+    {
+        ProgramMethod method = new ProgramMethod();
+        method.u2accessFlags     = u2(buffer);
+        method.u2nameIndex       = u2(buffer);
+        method.u2descriptorIndex = u2(buffer);
+        method.attributes        = NO_ATTRIBUTES;
+
+        // Keep only the code attribute.
+        int attributesCount = u2(buffer);
+        for (int index = 0; index < attributesCount; index++)
+        {
+            int nameIndex = u2(buffer);
+            int length    = buffer.getInt();
+            if (isAttribute(constantPool, nameIndex, Attribute.CODE))
+            {
+                method.attributes = new Attribute[] { readCode(buffer, nameIndex) };
+            }
+            else
+            {
+                buffer.position(buffer.position() + length);
+            }
+        }
+        method.u2attributesCount = method.attributes.length;
+
+        return method;
+    }
+
+
+    private static CodeAttribute readCode(ByteBuffer buffer, int nameIndex)
+    {
+        CodeAttribute codeAttribute = new CodeAttribute();
+        codeAttribute.u2attributeNameIndex = nameIndex;
+        codeAttribute.u2maxStack           = u2(buffer);
+        codeAttribute.u2maxLocals          = u2(buffer);
+        codeAttribute.u4codeLength         = buffer.getInt();
+        codeAttribute.code                 = new byte[codeAttribute.u4codeLength];
+        buffer.get(codeAttribute.code);
+
+        int exceptionTableLength = u2(buffer);
+        codeAttribute.u2exceptionTableLength = exceptionTableLength;
+        codeAttribute.exceptionTable         = new ExceptionInfo[exceptionTableLength];
+        for (int index = 0; index < exceptionTableLength; index++)
+        {
+            ExceptionInfo exceptionInfo = new ExceptionInfo();
+            exceptionInfo.u2startPC   = u2(buffer);
+            exceptionInfo.u2endPC     = u2(buffer);
+            exceptionInfo.u2handlerPC = u2(buffer);
+            exceptionInfo.u2catchType = u2(buffer);
+            codeAttribute.exceptionTable[index] = exceptionInfo;
+        }
+
+        // Skip the line numbers, local variables, stack map frames, etc.
+        skipAttributes(buffer);
+        codeAttribute.u2attributesCount = 0;
+        codeAttribute.attributes        = NO_ATTRIBUTES;
+
+        return codeAttribute;
+    }
+
+
+    private static BootstrapMethodsAttribute readBootstrapMethods(ByteBuffer buffer, int nameIndex)
+    {
+        BootstrapMethodsAttribute attribute = new BootstrapMethodsAttribute();
+        attribute.u2attributeNameIndex = nameIndex;
+
+        int count = u2(buffer);
+        attribute.u2bootstrapMethodsCount = count;
+        attribute.bootstrapMethods        = new BootstrapMethodInfo[count];
+        for (int index = 0; index < count; index++)
+        {
+            BootstrapMethodInfo info = new BootstrapMethodInfo();
+            info.u2methodHandleIndex   = u2(buffer);
+            info.u2methodArgumentCount = u2(buffer);
+            info.u2methodArguments     = new int[info.u2methodArgumentCount];
+            for (int argumentIndex = 0; argumentIndex < info.u2methodArgumentCount; argumentIndex++)
+            {
+                info.u2methodArguments[argumentIndex] = u2(buffer);
+            }
+            attribute.bootstrapMethods[index] = info;
+        }
+
+        return attribute;
+    }
+
+
+    private static void skipAttributes(ByteBuffer buffer)
+    {
+        int attributesCount = u2(buffer);
+        for (int index = 0; index < attributesCount; index++)
+        {
+            buffer.position(buffer.position() + 2);
+            int length = buffer.getInt();
+            buffer.position(buffer.position() + length);
+        }
+    }
+
+
+    private static boolean isAttribute(Constant[] constantPool, int nameIndex, String name)
+    {
+        return ((Utf8Constant)constantPool[nameIndex]).getString().equals(name);
+    }
+
+
+    /**
+     * Decodes a string in the modified UTF-8 encoding of class files.
+     */
+    private static String readUtf8(ByteBuffer buffer)
+    {
+        int    length = u2(buffer);
+        char[] chars  = new char[length];
+        int    count  = 0;
+        int    end    = buffer.position() + length;
+
+        while (buffer.position() < end)
+        {
+            int b = buffer.get() & 0xff;
+            if (b < 0x80)
+            {
+                chars[count++] = (char)b;
+            }
+            else if (b < 0xe0)
+            {
+                chars[count++] = (char)((b & 0x1f) << 6 | buffer.get() & 0x3f);
+            }
+            else
+            {
+                chars[count++] = (char)((b & 0x0f) << 12 | (buffer.get() & 0x3f) << 6 | buffer.get() & 0x3f);
+            }
+        }
+
+        return new String(chars, 0, count);
+    }
+
+
+    private static int u2(ByteBuffer buffer)
+    {
+        return buffer.getShort() & 0xffff;
+    }
+}
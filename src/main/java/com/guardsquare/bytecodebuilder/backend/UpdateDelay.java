@@ -0,0 +1,56 @@
+package com.guardsquare.bytecodebuilder.backend;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The delay between an edit and the update of the output, adapted to the
+ * measured duration of recent updates.
+ *
+ * With fast updates, the output follows the edits almost immediately; with
+ * slow updates, the delay widens until updates effectively only run when
+ * the user stops typing.
+ */
+public class UpdateDelay
+{
+    public static final long TYPING_DELAY_MILLIS = 500L;
+    public static final long MIN_DELAY_MILLIS    = 50L;
+    public static final long IDLE_DELAY_MILLIS   = 1500L;
+
+    // The weight of the latest update in the average duration, in percent.
+    private static final int AVERAGE_WEIGHT = 30;
+
+    private volatile long averageRunNanos = -1L;
+
+
+    /**
+     * Adds the duration of an update that ran to the end. Updates that were
+     * cut short don't tell how long an update takes.
+     */
+    public synchronized void recordRun(long runNanos)
+    {
+        long averageNanos = averageRunNanos;
+        averageRunNanos = averageNanos < 0L ?
+            runNanos :
+            (AVERAGE_WEIGHT * runNanos + (100 - AVERAGE_WEIGHT) * averageNanos) / 100;
+    }
+
+
+    /**
+     * Returns the delay for updates after edits: twice the average duration
+     * of recent updates, so updates only start after pauses that are long
+     * compared to the updates themselves, between {@link #MIN_DELAY_MILLIS}
+     * and {@link #IDLE_DELAY_MILLIS}. Before any update has finished, the delay
+     * is {@link #TYPING_DELAY_MILLIS}.
+     */
+    public long getTypingDelayMillis()
+    {
+        long averageNanos = averageRunNanos;
+        if (averageNanos < 0L)
+        {
+            return TYPING_DELAY_MILLIS;
+        }
+
+        long delayMillis = 2L * TimeUnit.NANOSECONDS.toMillis(averageNanos);
+        return Math.max(MIN_DELAY_MILLIS, Math.min(IDLE_DELAY_MILLIS, delayMillis));
+    }
+}
@@ -0,0 +1,289 @@
+package com.guardsquare.bytecodebuilder.backend;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Predicate;
+
+/**
+ * Debounces and runs output updates, independently of the IDE. The tool
+ * window and the keystroke replay harness both drive their updates through
+ * this class.
+ *
+ * Every scheduled update supersedes the pending and running ones: a pending
+ * update is cancelled, a queued or running one sees its cancellation flag
+ * raised and its output is never published. Each update has a generation
+ * number, so callers can match published output with the edits that caused
+ * it.
+ *
+ * The delays are timed on a scheduled executor, after which the updates run
+ * on a separate executor, e.g. a pool that is shared with other work. The
+ * typing delay adapts to the duration of recent updates that did the full
+ * work, see {@link UpdateDelay}. Explicit requests skip the delay.
+ *
+ * @param <T> the type of the output.
+ */
+public class UpdateScheduler<T>
+{
+    private final ScheduledExecutorService     scheduledExecutorService;
+    private final Executor                     executor;
+    private final Function<BooleanSupplier, T> generator;
+    private final ObjLongConsumer<T>           publisher;
+    private final Predicate<T>                 timed;
+
+    private final AtomicLong generation = new AtomicLong();
+    private final UpdateDelay updateDelay = new UpdateDelay();
+    private ScheduledFuture<?> updateFuture;
+
+    // Statistics.
+    private final AtomicLong requestedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong startedCount   = new AtomicLong();
+    private final AtomicLong abandonedCount = new AtomicLong();
+    private final AtomicLong publishedCount = new AtomicLong();
+
+
+    /**
+     * Creates a new scheduler that runs the updates on the executor that
+     * times their delays.
+     */
+    public UpdateScheduler(ScheduledExecutorService     scheduledExecutorService,
+                           Function<BooleanSupplier, T> generator,
+                           ObjLongConsumer<T>           publisher)
+    {
+        this(scheduledExecutorService, scheduledExecutorService, generator, publisher);
+    }
+
+
+    /**
+     * Creates a new scheduler that adapts its typing delay to the durations
+     * of all updates.
+     */
+    public UpdateScheduler(ScheduledExecutorService     scheduledExecutorService,
+                           Executor                     executor,
+                           Function<BooleanSupplier, T> generator,
+                           ObjLongConsumer<T>           publisher)
+    {
+        this(scheduledExecutorService, executor, generator, publisher, output -> true);
+    }
+
+
+    /**
+     * Creates a new scheduler.
+     * @param scheduledExecutorService the executor that times the delays.
+     * @param executor                 the executor that runs the updates.
+     * @param generator                computes the output, given a flag that
+     *                                 tells whether the update has been
+     *                                 superseded. It may throw a
+     *                                 CancellationException.
+     * @param publisher                publishes the output of an update that
+     *                                 hasn't been superseded, along with its
+     *                                 generation, on the thread of the update.
+     * @param timed                    tells whether the typing delay adapts
+     *                                 to the duration of the update with the
+     *                                 given output, e.g. only if it compiled,
+     *                                 rather than hitting a cache.
+     */
+    public UpdateScheduler(ScheduledExecutorService     scheduledExecutorService,
+                           Executor                     executor,
+                           Function<BooleanSupplier, T> generator,
+                           ObjLongConsumer<T>           publisher,
+                           Predicate<T>                 timed)
+    {
+        this.scheduledExecutorService = scheduledExecutorService;
+        this.executor                 = executor;
+        this.generator                = generator;
+        this.publisher                = publisher;
+        this.timed                    = timed;
+    }
+
+
+    /**
+     * Schedules an update after the typing delay, superseding any pending or
+     * running update, and returns its generation.
+     */
+    public long scheduleUpdate()
+    {
+        return scheduleUpdate(updateDelay.getTypingDelayMillis());
+    }
+
+
+    /**
+     * Returns the current delay for updates after edits.
+     */
+    public long getTypingDelayMillis()
+    {
+        return updateDelay.getTypingDelayMillis();
+    }
+
+
+    /**
+     * Schedules an update after the given delay, superseding any pending or
+     * running update, and returns its generation.
+     */
+    public synchronized long scheduleUpdate(long delayMillis)
+    {
+        long updateGeneration = supersede();
+
+        updateFuture = scheduledExecutorService.schedule(() -> executor.execute(() -> runUpdate(updateGeneration)),
+                                                         delayMillis,
+                                                         TimeUnit.MILLISECONDS);
+        return updateGeneration;
+    }
+
+
+    /**
+     * Hands an update to the executor right away, without going through the
+     * timer, superseding any pending or running update, and returns its
+     * generation. This is for explicit requests, which shouldn't wait for
+     * the typing delay, however long it has become.
+     */
+    public synchronized long updateNow()
+    {
+        long updateGeneration = supersede();
+
+        executor.execute(() -> runUpdate(updateGeneration));
+        return updateGeneration;
+    }
+
+
+    /**
+     * Cancels the pending and running updates, without scheduling a new one.
+     */
+    public synchronized void cancel()
+    {
+        generation.incrementAndGet();
+
+        if (updateFuture != null)
+        {
+            updateFuture.cancel(false);
+            updateFuture = null;
+        }
+    }
+
+
+    /**
+     * Returns the generation of the latest scheduled update.
+     */
+    public long getGeneration()
+    {
+        return generation.get();
+    }
+
+
+    /**
+     * Returns the number of scheduled updates.
+     */
+    public long getRequestedCount()
+    {
+        return requestedCount.get();
+    }
+
+
+    /**
+     * Returns the number of updates that were superseded before they started.
+     */
+    public long getCoalescedCount()
+    {
+        return coalescedCount.get();
+    }
+
+
+    /**
+     * Returns the number of updates that started running.
+     */
+    public long getStartedCount()
+    {
+        return startedCount.get();
+    }
+
+
+    /**
+     * Returns the number of updates that were superseded while they were
+     * running, so their work was wasted.
+     */
+    public long getAbandonedCount()
+    {
+        return abandonedCount.get();
+    }
+
+
+    /**
+     * Returns the number of updates whose output was published.
+     */
+    public long getPublishedCount()
+    {
+        return publishedCount.get();
+    }
+
+
+    // Small utility methods.
+
+    /**
+     * Starts a new generation and cancels the pending update, if any.
+     * @return the new generation.
+     */
+    private long supersede()
+    {
+        long updateGeneration = generation.incrementAndGet();
+        requestedCount.incrementAndGet();
+
+        if (updateFuture != null && updateFuture.cancel(false))
+        {
+            coalescedCount.incrementAndGet();
+        }
+        updateFuture = null;
+
+        return updateGeneration;
+    }
+
+
+    private void runUpdate(long updateGeneration)
+    {
+        BooleanSupplier cancelled = () -> generation.get() != updateGeneration;
+
+        // The update may have been superseded while it was queued.
+        if (cancelled.getAsBoolean())
+        {
+            coalescedCount.incrementAndGet();
+            return;
+        }
+
+        startedCount.incrementAndGet();
+
+        T    output;
+        long startNanos = System.nanoTime();
+        try
+        {
+            output = generator.apply(cancelled);
+
+            // Updates that only parsed or hit a cache would make the delay
+            // too short for the next update that compiles.
+            if (timed.test(output))
+            {
+                updateDelay.recordRun(System.nanoTime() - startNanos);
+            }
+        }
+        catch (CancellationException e)
+        {
+            abandonedCount.incrementAndGet();
+            return;
+        }
+
+        // Never publish the output of a superseded run.
+        if (cancelled.getAsBoolean())
+        {
+            abandonedCount.incrementAndGet();
+            return;
+        }
+
+        publisher.accept(output, updateGeneration);
+        publishedCount.incrementAndGet();
+    }
+}
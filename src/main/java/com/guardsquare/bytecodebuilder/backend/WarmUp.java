@@ -0,0 +1,84 @@
+package com.guardsquare.bytecodebuilder.backend;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+
+import static com.guardsquare.bytecodebuilder.BytecodeBuilderToolWindow.CLASS_NAME;
+import static com.guardsquare.bytecodebuilder.BytecodeBuilderToolWindow.METHOD_NAME;
+
+/**
+ * Runs the whole pipeline on a few small, representative snippets, so the
+ * compiler and printer classes are loaded and compiled by the JIT before the
+ * first real preview.
+ *
+ * The results are discarded and nothing is cached.
+ */
+public class WarmUp
+{
+    private static final System.Logger LOG = System.getLogger(WarmUp.class.getName());
+
+    private static final String[] SNIPPET_BODIES =
+    {
+        // Arithmetic, locals and a call.
+        "int a = args.length; long b = a * 31L + 7; System.out.println(a + b);",
+        // Branches and a loop.
+        "int a = 0; for (int i = 0; i < args.length; i++) { if (args[i].isEmpty()) a++; else a--; } System.out.println(a);",
+        // Exception handlers.
+        "try { Integer.parseInt(args[0]); } catch (NumberFormatException e) { System.out.println(\"Bad \\\"number\\\"\\n\"); } finally { System.out.println(); }",
+        // Invokedynamic and a nested class.
+        "Runnable r = () -> System.out.println(args.length); r.run(); new Object() { public String toString() { return \"\"; } }.toString();",
+    };
+
+
+    /**
+     * Warms up the pipeline with the given compiler backend and class path,
+     * stopping as soon as the given supplier reports that it's cancelled.
+     */
+    public static void run(CompilerBackend compilationService, String customClassPath, BooleanSupplier cancelled)
+    {
+        try
+        {
+            // The user may have started working before the warm-up started.
+            CodeUtil.checkCancelled(cancelled);
+
+            // Index the class path.
+            compilationService.prepare(customClassPath);
+
+            for (int index = 0; index < SNIPPET_BODIES.length; index++)
+            {
+                CodeUtil.checkCancelled(cancelled);
+
+                // Alternate the output modes, so both get warmed up.
+                CodeUtil.writeProGuardInstructions(compilationService,
+                                                   wrap(SNIPPET_BODIES[index]),
+                                                   customClassPath,
+                                                   index % 2 == 1,
+                                                   cancelled,
+                                                   new PipelineStats(),
+                                                   chunk -> {});
+            }
+        }
+        catch (CancellationException e)
+        {
+            // The user started working; the warm-up has served its purpose.
+        }
+        catch (IOException e)
+        {
+            // The first preview will report the problem, if it persists.
+            LOG.log(System.Logger.Level.WARNING, "Can't prepare the class path [" + customClassPath + "] for the warm-up", e);
+        }
+    }
+
+
+    // Small utility methods.
+
+    private static String wrap(String body)
+    {
+        return "class " + CLASS_NAME + " {\n" +
+               "    public static void " + METHOD_NAME + "(String... args) {\n" +
+               "        " + body + "\n" +
+               "    }\n" +
+               "}\n";
+    }
+}
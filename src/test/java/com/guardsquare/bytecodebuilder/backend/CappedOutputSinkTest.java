@@ -0,0 +1,94 @@
+package com.guardsquare.bytecodebuilder.backend;
+
+import org.junit.jupiter.api.Test;
+
+import static com.guardsquare.bytecodebuilder.backend.CodeUtil.NEW_LINE;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the truncation of the output after a maximum number of characters.
+ */
+class CappedOutputSinkTest
+{
+    private static final String MARKER = NEW_LINE + "// Output truncated after 10 characters." + NEW_LINE;
+
+
+    @Test
+    void shortOutputPassesUnchanged()
+    {
+        StringBuilder    builder = new StringBuilder();
+        CappedOutputSink sink    = new CappedOutputSink(builder::append, 10L);
+
+        sink.write("abc");
+        sink.write("defg");
+
+        assertEquals("abcdefg", builder.toString());
+        assertFalse(sink.isTruncated());
+        assertFalse(sink.isFull());
+    }
+
+
+    @Test
+    void outputThatFitsExactlyIsNotTruncated()
+    {
+        StringBuilder    builder = new StringBuilder();
+        CappedOutputSink sink    = new CappedOutputSink(builder::append, 10L);
+
+        sink.write("01234");
+        sink.write("56789");
+
+        assertEquals("0123456789", builder.toString());
+        assertFalse(sink.isTruncated());
+    }
+
+
+    @Test
+    void longOutputIsTruncatedWithinAChunk()
+    {
+        StringBuilder    builder = new StringBuilder();
+        CappedOutputSink sink    = new CappedOutputSink(builder::append, 10L);
+
+        sink.write("0123456");
+        sink.write("789abcdef");
+
+        assertEquals("0123456789" + MARKER, builder.toString());
+        assertTrue(sink.isTruncated());
+        assertTrue(sink.isFull());
+    }
+
+
+    @Test
+    void writesAfterTruncationAreDropped()
+    {
+        StringBuilder    builder = new StringBuilder();
+        CappedOutputSink sink    = new CappedOutputSink(builder::append, 10L);
+
+        sink.write("0123456789abc");
+        sink.write("more");
+
+        assertEquals("0123456789" + MARKER, builder.toString());
+    }
+
+
+    @Test
+    void fullUnderlyingSinkMakesItFull()
+    {
+        OutputSink fullSink = new OutputSink()
+        {
+            @Override
+            public void write(CharSequence chunk) {}
+
+
+            @Override
+            public boolean isFull()
+            {
+                return true;
+            }
+        };
+
+        CappedOutputSink sink = new CappedOutputSink(fullSink, 10L);
+
+        assertTrue(sink.isFull());
+        assertFalse(sink.isTruncated());
+    }
+}
@@ -0,0 +1,137 @@
+package com.guardsquare.bytecodebuilder.backend;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import proguard.classfile.ProgramClass;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.guardsquare.bytecodebuilder.BytecodeBuilderToolWindow.CLASS_NAME;
+import static com.guardsquare.bytecodebuilder.BytecodeBuilderToolWindow.METHOD_NAME;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the replay of the printed composer calls and the comparison of the
+ * rebuilt classes with the compiled ones.
+ */
+class ComposerReplayerTest
+{
+    private static CompilationService compilationService;
+
+
+    @BeforeAll
+    static void setUp()
+    {
+        compilationService = new CompilationService();
+    }
+
+
+    @AfterAll
+    static void tearDown()
+    {
+        compilationService.close();
+    }
+
+
+    @Test
+    void classIsIdenticalToItself() throws IOException
+    {
+        ProgramClass programClass = compileMainClass("int sum = 0;");
+
+        assertEquals(List.of(), ComposerReplayer.compare(programClass, programClass));
+    }
+
+
+    @Test
+    void differentCodeIsReported() throws IOException
+    {
+        List<String> differences = ComposerReplayer.compare(compileMainClass("int sum = 1;"),
+                                                            compileMainClass("int sum = 2;"));
+
+        assertEquals(1, differences.size());
+        assertTrue(differences.get(0).startsWith(METHOD_NAME + "([Ljava/lang/String;)V [0]: "), differences.get(0));
+    }
+
+
+    @Test
+    void differentMethodCountIsReported() throws IOException
+    {
+        ProgramClass originalClass = compileMainClass("int sum = 0;");
+        ProgramClass rebuiltClass  = new ProgramClass();
+        rebuiltClass.u2methodsCount = 0;
+
+        List<String> differences = ComposerReplayer.compare(originalClass, rebuiltClass);
+
+        assertEquals(List.of("method count 2 became 0"), differences);
+    }
+
+
+    @Test
+    void printedCodeRebuildsTheSameCode() throws IOException
+    {
+        String report = ComposerReplayer.check(compile(
+            "int sum = 0;\n" +
+            "for (int index = 0; index < args.length; index++) { sum += args[index].length(); }\n" +
+            "try { sum += Integer.parseInt(args[0]); } catch (RuntimeException e) { sum = -1; }\n" +
+            "switch (sum) { case 1: case 2: case 3: sum++; break; default: sum = 0; }\n" +
+            "System.out.println(\"Sum: \" + sum);"));
+
+        assertTrue(report.startsWith(CLASS_NAME + ": identical code, "), report);
+        assertFalse(report.contains("can't express"), report);
+    }
+
+
+    @Test
+    void multiDimensionalArrayIsRebuilt() throws IOException
+    {
+        String report = ComposerReplayer.check(compile("int[][] grid = new int[3][4];"));
+
+        assertTrue(report.startsWith(CLASS_NAME + ": identical code, "), report);
+        assertFalse(report.contains(" is printed as "), report);
+    }
+
+
+    @Test
+    void inexpressibleInstructionsAreListed() throws IOException
+    {
+        // Bipush with a small constant is printed without its argument.
+        List<String> problems      = new ArrayList<>();
+        ProgramClass originalClass = compileMainClass("int sum = -2;");
+        ProgramClass rebuiltClass  = ComposerReplayer.replayClass(originalClass, problems);
+
+        assertEquals(1, problems.size(), problems.toString());
+        assertTrue(problems.get(0).contains("bipush"), problems.get(0));
+        assertTrue(problems.get(0).contains("the composer has no method bipush()"), problems.get(0));
+
+        // The instruction is copied, so the rest of the code still compares.
+        assertEquals(List.of(), ComposerReplayer.compare(originalClass, rebuiltClass));
+    }
+
+
+    // Small utility methods.
+
+    private static ProgramClass compileMainClass(String body) throws IOException
+    {
+        return SelectiveClassReader.read(compile(body).get(0));
+    }
+
+
+    private static List<ByteBuffer> compile(String body) throws IOException
+    {
+        String javaCode =
+            "class " + CLASS_NAME + "\n{\n" +
+            "    public static void " + METHOD_NAME + "(String... args)\n" +
+            "    {\n" +
+            "        " + body + "\n" +
+            "    }\n" +
+            "}\n";
+
+        return compilationService.compile(javaCode, new PrintWriter(new StringWriter()), "", () -> false);
+    }
+}
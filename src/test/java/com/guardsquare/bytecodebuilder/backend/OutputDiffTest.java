@@ -0,0 +1,94 @@
+package com.guardsquare.bytecodebuilder.backend;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the changed line ranges that the output document is updated with.
+ */
+class OutputDiffTest
+{
+    @Test
+    void identicalTextsHaveNoDiff()
+    {
+        assertTrue(OutputDiff.compute("a\nb\n", "a\nb\n").isEmpty());
+        assertTrue(OutputDiff.compute("", "").isEmpty());
+    }
+
+
+    @Test
+    void changedLineIsTheOnlyRange()
+    {
+        OutputDiff diff = check("a\nb\nc\n", "a\nX\nc\n");
+
+        assertEquals(2, diff.start);
+        assertEquals(4, diff.oldEnd);
+        assertEquals(4, diff.newEnd);
+    }
+
+
+    @Test
+    void appendedLinesAreInserted()
+    {
+        OutputDiff diff = check("a\n", "a\nb\n");
+
+        assertEquals(2, diff.start);
+        assertEquals(2, diff.oldEnd);
+        assertEquals(4, diff.newEnd);
+    }
+
+
+    @Test
+    void removedLinesAreDeleted()
+    {
+        OutputDiff diff = check("a\nb\nc\n", "a\nc\n");
+
+        assertEquals(diff.start, diff.newEnd);
+    }
+
+
+    @Test
+    void repeatedLinesDontOverlap()
+    {
+        check("a\na\n", "a\n");
+        check("a\n", "a\na\n");
+        check("x\nx\nx\n", "x\nx\n");
+    }
+
+
+    @Test
+    void changesWithinALineReplaceTheWholeLine()
+    {
+        check("abc", "abd");
+        check("first\nabc\nlast", "first\nabd\nlast");
+    }
+
+
+    @Test
+    void emptyTextsAreReplacedEntirely()
+    {
+        check("", "a\nb\n");
+        check("a\nb\n", "");
+    }
+
+
+    /**
+     * Checks that the diff between the given texts covers whole lines, and
+     * that applying it to the old text results in the new text.
+     */
+    private static OutputDiff check(String oldText, String newText)
+    {
+        OutputDiff diff = OutputDiff.compute(oldText, newText);
+
+        assertTrue(diff.start == 0 || oldText.charAt(diff.start - 1) == '\n');
+        assertTrue(diff.start <= diff.oldEnd && diff.oldEnd <= oldText.length());
+        assertTrue(diff.start <= diff.newEnd && diff.newEnd <= newText.length());
+        assertEquals(oldText.substring(diff.oldEnd), newText.substring(diff.newEnd));
+        assertEquals(newText,
+                     oldText.substring(0, diff.start) +
+                     newText.substring(diff.start, diff.newEnd) +
+                     oldText.substring(diff.oldEnd));
+        return diff;
+    }
+}
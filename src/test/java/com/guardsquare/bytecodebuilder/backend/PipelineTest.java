@@ -0,0 +1,115 @@
+package com.guardsquare.bytecodebuilder.backend;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import static com.guardsquare.bytecodebuilder.BytecodeBuilderToolWindow.CLASS_NAME;
+import static com.guardsquare.bytecodebuilder.BytecodeBuilderToolWindow.METHOD_NAME;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the stages of the generation pipeline that the benchmarks measure,
+ * and the caches between them.
+ */
+class PipelineTest
+{
+    private static final String JAVA_CODE =
+        "class " + CLASS_NAME + "\n{\n" +
+        "    public static void " + METHOD_NAME + "(String... args)\n" +
+        "    {\n" +
+        "        int sum = 0;\n" +
+        "        for (int index = 0; index < args.length; index++) { sum += args[index].length(); }\n" +
+        "        System.out.println(sum);\n" +
+        "    }\n" +
+        "}\n";
+
+    private static CompilationService compilationService;
+
+
+    @BeforeAll
+    static void setUp()
+    {
+        compilationService = new CompilationService();
+    }
+
+
+    @AfterAll
+    static void tearDown()
+    {
+        compilationService.close();
+    }
+
+
+    @Test
+    void firstRunGoesThroughEveryStage()
+    {
+        PipelineStats stats = new PipelineStats();
+        String        text  = CodeUtil.getProGuardInstructions(compilationService, new ResultCache(), JAVA_CODE, "", false, () -> false, stats);
+
+        assertTrue(text.contains(".invokevirtual(\"java/io/PrintStream\", \"println\", \"(I)V\")"), text);
+        assertFalse(stats.isSourceCacheHit());
+        assertFalse(stats.isBytecodeCacheHit());
+        assertTrue(stats.getClassBytes() > 0L);
+        assertTrue(stats.getInstructionCount() > 0L);
+        assertTrue(stats.getLabelCount() > 0L);
+        assertTrue(stats.getStageNanos(PipelineStats.COMPILE) > 0L);
+        assertTrue(stats.getStageNanos(PipelineStats.TOTAL) >= stats.getStageNanos(PipelineStats.COMPILE));
+    }
+
+
+    @Test
+    void sameSourceHitsTheSourceCache()
+    {
+        ResultCache resultCache = new ResultCache();
+        String      first       = CodeUtil.getProGuardInstructions(compilationService, resultCache, JAVA_CODE, "", false, () -> false);
+
+        PipelineStats stats  = new PipelineStats();
+        String        second = CodeUtil.getProGuardInstructions(compilationService, resultCache, JAVA_CODE, "", false, () -> false, stats);
+
+        assertTrue(stats.isSourceCacheHit());
+        assertEquals(first, second);
+    }
+
+
+    @Test
+    void commentOnlyEditHitsTheBytecodeCache()
+    {
+        ResultCache resultCache = new ResultCache();
+        String      first       = CodeUtil.getProGuardInstructions(compilationService, resultCache, JAVA_CODE, "", false, () -> false);
+
+        PipelineStats stats  = new PipelineStats();
+        String        edited = JAVA_CODE.replace("int sum = 0;", "int sum = 0; // The total length.");
+        String        second = CodeUtil.getProGuardInstructions(compilationService, resultCache, edited, "", false, () -> false, stats);
+
+        assertFalse(stats.isSourceCacheHit());
+        assertTrue(stats.isBytecodeCacheHit());
+        assertEquals(first, second);
+    }
+
+
+    @Test
+    void multiDimensionalArrayIsPrintedWithItsDimensions()
+    {
+        String javaCode = JAVA_CODE.replace("int sum = 0;", "int[][] grid = new int[3][4];");
+
+        String text = CodeUtil.getProGuardInstructions(compilationService, new ResultCache(), javaCode, "", false, () -> false);
+        assertTrue(text.contains(".multianewarray(constantPoolEditor.addClassConstant(\"[[I\", null), 2)"), text);
+
+        String hoistedText = CodeUtil.getProGuardInstructions(compilationService, new ResultCache(), javaCode, "", true, () -> false);
+        assertTrue(hoistedText.matches("(?s).*\\.multianewarray\\(constant\\d+, 2\\).*"), hoistedText);
+    }
+
+
+    @Test
+    void streamedOutputMatchesCachedOutput()
+    {
+        String cached = CodeUtil.getProGuardInstructions(compilationService, new ResultCache(), JAVA_CODE, "", false, () -> false);
+
+        StringBuilder streamed = new StringBuilder();
+        CodeUtil.writeProGuardInstructions(compilationService, JAVA_CODE, "", false, () -> false, new PipelineStats(), streamed::append);
+
+        // Only the cached output has its line separators normalized.
+        assertEquals(streamed.toString().replace("\r\n", "\n"), cached);
+    }
+}
@@ -0,0 +1,187 @@
+package com.guardsquare.bytecodebuilder.backend;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import proguard.classfile.ProgramClass;
+import proguard.classfile.ProgramMethod;
+import proguard.classfile.attribute.CodeAttribute;
+import proguard.classfile.io.ProgramClassReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.guardsquare.bytecodebuilder.BytecodeBuilderToolWindow.CLASS_NAME;
+import static com.guardsquare.bytecodebuilder.BytecodeBuilderToolWindow.METHOD_NAME;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests that the selective reader reads everything the printers need the
+ * same way as ProGuardCORE's complete reader.
+ */
+class SelectiveClassReaderTest
+{
+    private static final String JAVA_CODE =
+        "import java.util.function.IntSupplier;\n" +
+        "class " + CLASS_NAME + " implements Runnable\n{\n" +
+        "    private static final String GREETING = \"Hello\";\n" +
+        "    private long count = 5_000_000_000L;\n" +
+        "    public static void " + METHOD_NAME + "(String... args)\n" +
+        "    {\n" +
+        "        IntSupplier supplier = () -> args.length;\n" +
+        "        try { System.out.println(GREETING + Integer.parseInt(args[0])); }\n" +
+        "        catch (NumberFormatException e) { System.out.println(1.5 * supplier.getAsInt()); }\n" +
+        "        finally { System.out.println(); }\n" +
+        "        switch (args.length) { case 0: case 1: break; case 1000: return; default: new " + CLASS_NAME + "().run(); }\n" +
+        "    }\n" +
+        "    public void run() { count++; }\n" +
+        "    static class Inner { int[][] cells = new int[3][4]; }\n" +
+        "}\n";
+
+    private static CompilationService compilationService;
+
+
+    @BeforeAll
+    static void setUp()
+    {
+        compilationService = new CompilationService();
+    }
+
+
+    @AfterAll
+    static void tearDown()
+    {
+        compilationService.close();
+    }
+
+
+    @Test
+    void readsTheSameClassesAsProgramClassReader() throws IOException
+    {
+        List<ByteBuffer> classFiles = compile(JAVA_CODE);
+        assertEquals(2, classFiles.size());
+
+        for (ByteBuffer classFile : classFiles)
+        {
+            ProgramClass selectiveClass = SelectiveClassReader.read(classFile);
+            ProgramClass completeClass  = readCompletely(classFile);
+
+            assertEquals(completeClass.getName(),           selectiveClass.getName());
+            assertEquals(completeClass.getSuperName(),      selectiveClass.getSuperName());
+            assertEquals(completeClass.u4version,           selectiveClass.u4version);
+            assertEquals(completeClass.u2accessFlags,       selectiveClass.u2accessFlags);
+            assertEquals(completeClass.u2constantPoolCount, selectiveClass.u2constantPoolCount);
+            assertArrayEquals(Arrays.copyOf(completeClass.u2interfaces, completeClass.u2interfacesCount),
+                              Arrays.copyOf(selectiveClass.u2interfaces, selectiveClass.u2interfacesCount));
+
+            for (int index = 1; index < completeClass.u2constantPoolCount; index++)
+            {
+                if (completeClass.constantPool[index] != null)
+                {
+                    assertEquals(completeClass.constantPool[index].getTag(),
+                                 selectiveClass.constantPool[index].getTag(),
+                                 "constant " + index);
+                }
+            }
+
+            assertEquals(completeClass.u2methodsCount, selectiveClass.u2methodsCount);
+            for (int index = 0; index < completeClass.u2methodsCount; index++)
+            {
+                assertSameMethod(completeClass, completeClass.methods[index], selectiveClass, selectiveClass.methods[index]);
+            }
+
+            // The instructions and their constants read the same.
+            assertEquals(List.of(), ComposerReplayer.compare(completeClass, selectiveClass));
+        }
+    }
+
+
+    @Test
+    void readsFromTheBufferPosition() throws IOException
+    {
+        ByteBuffer classFile = compile(JAVA_CODE).get(0);
+
+        // Put the class file in the middle of a larger buffer.
+        ByteBuffer buffer = ByteBuffer.allocate(classFile.remaining() + 16);
+        buffer.position(8);
+        buffer.put(classFile.duplicate());
+        buffer.position(8);
+        buffer.limit(8 + classFile.remaining());
+
+        ProgramClass programClass = SelectiveClassReader.read(buffer);
+
+        assertEquals(readCompletely(classFile).getName(), programClass.getName());
+        assertEquals(8, buffer.position());
+    }
+
+
+    // Small utility methods.
+
+    private static List<ByteBuffer> compile(String javaCode) throws IOException
+    {
+        StringWriter stringWriter = new StringWriter();
+        return compilationService.compile(javaCode, new PrintWriter(stringWriter), "", () -> false);
+    }
+
+
+    private static ProgramClass readCompletely(ByteBuffer classFile)
+    {
+        byte[] bytes = new byte[classFile.remaining()];
+        classFile.duplicate().get(bytes);
+
+        ProgramClass programClass = new ProgramClass();
+        programClass.accept(new ProgramClassReader(new DataInputStream(new ByteArrayInputStream(bytes))));
+        return programClass;
+    }
+
+
+    private static void assertSameMethod(ProgramClass completeClass, ProgramMethod completeMethod, ProgramClass selectiveClass, ProgramMethod selectiveMethod)
+    {
+        String name = completeMethod.getName(completeClass) + completeMethod.getDescriptor(completeClass);
+
+        assertEquals(name, selectiveMethod.getName(selectiveClass) + selectiveMethod.getDescriptor(selectiveClass));
+        assertEquals(completeMethod.getAccessFlags(), selectiveMethod.getAccessFlags(), name);
+
+        CodeAttribute completeCode  = findCodeAttribute(completeMethod);
+        CodeAttribute selectiveCode = findCodeAttribute(selectiveMethod);
+        if (completeCode == null)
+        {
+            assertNull(selectiveCode, name);
+            return;
+        }
+
+        assertNotNull(selectiveCode, name);
+        assertEquals(completeCode.u2maxStack,  selectiveCode.u2maxStack,  name);
+        assertEquals(completeCode.u2maxLocals, selectiveCode.u2maxLocals, name);
+        assertArrayEquals(Arrays.copyOf(completeCode.code,  completeCode.u4codeLength),
+                          Arrays.copyOf(selectiveCode.code, selectiveCode.u4codeLength),
+                          name);
+        assertEquals(completeCode.u2exceptionTableLength, selectiveCode.u2exceptionTableLength, name);
+        for (int index = 0; index < completeCode.u2exceptionTableLength; index++)
+        {
+            assertEquals(completeCode.exceptionTable[index].u2startPC,   selectiveCode.exceptionTable[index].u2startPC,   name);
+            assertEquals(completeCode.exceptionTable[index].u2endPC,     selectiveCode.exceptionTable[index].u2endPC,     name);
+            assertEquals(completeCode.exceptionTable[index].u2handlerPC, selectiveCode.exceptionTable[index].u2handlerPC, name);
+            assertEquals(completeCode.exceptionTable[index].u2catchType, selectiveCode.exceptionTable[index].u2catchType, name);
+        }
+    }
+
+
+    private static CodeAttribute findCodeAttribute(ProgramMethod method)
+    {
+        for (int index = 0; index < method.u2attributesCount; index++)
+        {
+            if (method.attributes[index] instanceof CodeAttribute)
+            {
+                return (CodeAttribute)method.attributes[index];
+            }
+        }
+        return null;
+    }
+}
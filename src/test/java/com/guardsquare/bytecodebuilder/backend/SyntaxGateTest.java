@@ -0,0 +1,96 @@
+package com.guardsquare.bytecodebuilder.backend;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.concurrent.CancellationException;
+
+import static com.guardsquare.bytecodebuilder.BytecodeBuilderToolWindow.CLASS_NAME;
+import static com.guardsquare.bytecodebuilder.BytecodeBuilderToolWindow.METHOD_NAME;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the parse-only check that keeps syntactically invalid edits from
+ * being compiled, with both compiler backends.
+ */
+class SyntaxGateTest
+{
+    @ParameterizedTest
+    @ValueSource(strings = { CompilerBackend.JAVAC, CompilerBackend.ECLIPSE })
+    void validSourceHasNoSyntaxErrors(String compiler)
+    {
+        try (CompilerBackend compilerBackend = CompilerBackend.create(compiler))
+        {
+            assertNull(CodeUtil.getSyntaxErrors(compilerBackend, wrap("int sum = 0;"), "", () -> false));
+        }
+    }
+
+
+    @ParameterizedTest
+    @ValueSource(strings = { CompilerBackend.JAVAC, CompilerBackend.ECLIPSE })
+    void invalidSourceReportsItsLine(String compiler)
+    {
+        try (CompilerBackend compilerBackend = CompilerBackend.create(compiler))
+        {
+            String syntaxErrors = CodeUtil.getSyntaxErrors(compilerBackend, wrap("int sum = 0"), "", () -> false);
+
+            assertNotNull(syntaxErrors);
+            assertTrue(syntaxErrors.startsWith("error: "), syntaxErrors);
+            assertTrue(syntaxErrors.contains(" at line 5."), syntaxErrors);
+        }
+    }
+
+
+    @ParameterizedTest
+    @ValueSource(strings = { CompilerBackend.JAVAC, CompilerBackend.ECLIPSE })
+    void semanticErrorsPassTheGate(String compiler)
+    {
+        try (CompilerBackend compilerBackend = CompilerBackend.create(compiler))
+        {
+            // Only the full compilation resolves names.
+            assertNull(CodeUtil.getSyntaxErrors(compilerBackend, wrap("undefined = 1;"), "", () -> false));
+        }
+    }
+
+
+    @ParameterizedTest
+    @ValueSource(strings = { CompilerBackend.JAVAC, CompilerBackend.ECLIPSE })
+    void cancelledParseIsAborted(String compiler)
+    {
+        try (CompilerBackend compilerBackend = CompilerBackend.create(compiler))
+        {
+            assertThrows(CancellationException.class,
+                         () -> CodeUtil.getSyntaxErrors(compilerBackend, wrap("int sum = 0;"), "", () -> true));
+        }
+    }
+
+
+    @ParameterizedTest
+    @ValueSource(strings = { CompilerBackend.JAVAC, CompilerBackend.ECLIPSE })
+    void previewShowsEitherCodeOrSyntaxErrors(String compiler)
+    {
+        try (CompilerBackend compilerBackend = CompilerBackend.create(compiler))
+        {
+            Preview invalid = Preview.generate(compilerBackend, new ResultCache(), wrap("int sum = 0"), "", false, () -> false, Long.MAX_VALUE);
+            assertNull(invalid.text);
+            assertNotNull(invalid.syntaxErrors);
+
+            Preview valid = Preview.generate(compilerBackend, new ResultCache(), wrap("int sum = 0;"), "", false, () -> false, Long.MAX_VALUE);
+            assertNull(valid.syntaxErrors);
+            assertTrue(valid.text.contains(".istore_1()"), valid.text);
+        }
+    }
+
+
+    // Small utility methods.
+
+    private static String wrap(String body)
+    {
+        return "class " + CLASS_NAME + "\n{\n" +
+               "    public static void " + METHOD_NAME + "(String... args)\n" +
+               "    {\n" +
+               "        " + body + "\n" +
+               "    }\n" +
+               "}\n";
+    }
+}